@@ -0,0 +1,28 @@
+package com.andrewlalis.d_package_search.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * File utilities for benchmarks.
+ */
+final class BenchmarkFiles {
+    private BenchmarkFiles() {}
+
+    /**
+     * Recursively deletes a directory, if it exists.
+     * @param dir The directory to delete.
+     * @throws IOException If it couldn't be deleted.
+     */
+    static void deleteRecursively(Path dir) throws IOException {
+        if (Files.notExists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.andrewlalis.d_package_search.benchmarks;
+
+import com.andrewlalis.d_package_search.impl.RegistryDumpParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Measures how long it takes to parse a whole registry dump, the same way
+ * that the registry fetcher parses its cached dump. The dump is read from
+ * disk, so the (warm) file cache is included in the measurement.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DumpParsingBenchmark {
+    @Param({"1", "10"})
+    public int scale;
+
+    /**
+     * Whether to parse the gzipped dump, like the fetcher does, or an
+     * uncompressed copy of it, to separate decompression from parsing.
+     */
+    @Param({"true", "false"})
+    public boolean gzipped;
+
+    private Path dumpFile;
+    private final RegistryDumpParser parser = new RegistryDumpParser();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Path gzippedFile = SyntheticRegistryDump.getOrCreate(scale);
+        if (gzipped) {
+            dumpFile = gzippedFile;
+        } else {
+            dumpFile = Files.createTempFile("registry-dump", ".json");
+            try (var in = new GZIPInputStream(Files.newInputStream(gzippedFile))) {
+                Files.copy(in, dumpFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (!gzipped) Files.deleteIfExists(dumpFile);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws Exception {
+        try (InputStream in = RegistryDumpParser.decompressIfGzipped(Files.newInputStream(dumpFile))) {
+            parser.parse(in, LocalDateTime.now(), blackhole::consume);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.andrewlalis.d_package_search.benchmarks;
+
+import com.andrewlalis.d_package_search.IndexGenerator;
+import com.andrewlalis.d_package_search.impl.FilePackageFetcher;
+import com.andrewlalis.d_package_search.impl.IndexGenerations;
+import com.andrewlalis.d_package_search.impl.LucenePackageIndexer;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a full rebuild of the index takes, from parsing the
+ * dump to committing the new index generation, through the same
+ * {@link IndexGenerator} pipeline that the application uses. Divide the
+ * number of packages ({@link SyntheticRegistryDump#PACKAGES_PER_SCALE} times
+ * the scale) by the time to get the indexing throughput.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexingBenchmark {
+    @Param({"1", "10"})
+    public int scale;
+
+    @Param({"1", "4"})
+    public int indexerThreads;
+
+    private Path dumpFile;
+    private Path indexDir;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws Exception {
+        dumpFile = SyntheticRegistryDump.getOrCreate(scale);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws Exception {
+        indexDir = Files.createTempDirectory("package-index");
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() throws Exception {
+        BenchmarkFiles.deleteRecursively(indexDir);
+    }
+
+    @Benchmark
+    public void fullRebuild() {
+        IndexGenerations generations = new IndexGenerations(indexDir);
+        new IndexGenerator(
+                new FilePackageFetcher(dumpFile),
+                fullRebuild -> new LucenePackageIndexer(generations, fullRebuild, 64, 10),
+                () -> {},
+                256,
+                indexerThreads
+        ).run(true);
+    }
+}
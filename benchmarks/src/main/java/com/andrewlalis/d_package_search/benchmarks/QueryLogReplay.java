@@ -0,0 +1,189 @@
+package com.andrewlalis.d_package_search.benchmarks;
+
+import com.andrewlalis.d_package_search.QueryLog;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the searches in a query log against a running server, and reports
+ * its throughput and latency. Searches are either sent at a fixed rate
+ * (open-loop), in which case each search's latency is measured from when it
+ * was due to be sent, so that a server that falls behind isn't flattered; or
+ * by a fixed number of concurrent clients (closed-loop), each sending its
+ * next search as soon as the last one is done.
+ * <p>
+ * Usage: {@code java -cp target/benchmarks.jar com.andrewlalis.d_package_search.benchmarks.QueryLogReplay
+ * <query-log> [--url http://localhost:8080] [--qps N | --concurrency N] [--requests N]}
+ * </p>
+ * <p>
+ * Searches with a cursor are skipped, since cursors are only valid for the
+ * index version they came from. If more requests are asked for than there
+ * are searches in the log, the log is replayed from the start again.
+ * </p>
+ */
+public final class QueryLogReplay {
+    private record Options(Path logFile, String url, int qps, int concurrency, int requests) {}
+
+    private QueryLogReplay() {}
+
+    public static void main(String[] args) throws Exception {
+        Options options = parseOptions(args);
+        List<URI> uris = readSearches(options.logFile(), options.url());
+        if (uris.isEmpty()) {
+            System.err.println("The query log has no searches to replay.");
+            System.exit(1);
+        }
+        int requests = options.requests() > 0 ? options.requests() : uris.size();
+        System.out.printf(
+                "Replaying %d searches from %s against %s, %s.%n",
+                requests,
+                options.logFile(),
+                options.url(),
+                options.qps() > 0 ? "at " + options.qps() + " per second" : "with " + options.concurrency() + " concurrent clients"
+        );
+
+        long[] latencies = new long[requests];
+        Map<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+        LongAdder failures = new LongAdder();
+        long start = System.nanoTime();
+        // The executor is closed first, which waits for every search to finish.
+        try (
+                HttpClient client = HttpClient.newBuilder()
+                        .version(HttpClient.Version.HTTP_1_1)
+                        .connectTimeout(Duration.ofSeconds(5))
+                        .build();
+                ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()
+        ) {
+            if (options.qps() > 0) {
+                long intervalNanos = 1_000_000_000L / options.qps();
+                for (int i = 0; i < requests; i++) {
+                    long due = start + i * intervalNanos;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                    int idx = i;
+                    executor.execute(() -> latencies[idx] = send(client, uris.get(idx % uris.size()), due, statusCounts, failures));
+                }
+            } else {
+                AtomicInteger next = new AtomicInteger();
+                for (int c = 0; c < options.concurrency(); c++) {
+                    executor.execute(() -> {
+                        int idx;
+                        while ((idx = next.getAndIncrement()) < requests) {
+                            latencies[idx] = send(client, uris.get(idx % uris.size()), System.nanoTime(), statusCounts, failures);
+                        }
+                    });
+                }
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        report(latencies, elapsedNanos, statusCounts, failures.sum());
+    }
+
+    /**
+     * Sends a search, and waits for its response.
+     * @return The latency in nanoseconds, measured from the given start time.
+     */
+    private static long send(HttpClient client, URI uri, long startNanos, Map<Integer, LongAdder> statusCounts, LongAdder failures) {
+        try {
+            HttpResponse<byte[]> response = client.send(
+                    HttpRequest.newBuilder(uri).header("Accept-Encoding", "gzip").timeout(Duration.ofSeconds(30)).build(),
+                    HttpResponse.BodyHandlers.ofByteArray()
+            );
+            statusCounts.computeIfAbsent(response.statusCode(), k -> new LongAdder()).increment();
+        } catch (IOException | InterruptedException e) {
+            failures.increment();
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    private static void report(long[] latencies, long elapsedNanos, Map<Integer, LongAdder> statusCounts, long failures) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        double elapsedSeconds = elapsedNanos / 1e9;
+        System.out.printf("Sent %d searches in %.2f s: %.1f searches/s.%n", sorted.length, elapsedSeconds, sorted.length / elapsedSeconds);
+        new TreeMap<>(statusCounts).forEach((status, count) -> System.out.printf("  HTTP %d: %d%n", status, count.sum()));
+        if (failures > 0) System.out.printf("  Failed: %d%n", failures);
+        System.out.println("Latency (ms):");
+        System.out.printf("  p50    %10.3f%n", percentileMillis(sorted, 50));
+        System.out.printf("  p95    %10.3f%n", percentileMillis(sorted, 95));
+        System.out.printf("  p99    %10.3f%n", percentileMillis(sorted, 99));
+        System.out.printf("  p99.9  %10.3f%n", percentileMillis(sorted, 99.9));
+        System.out.printf("  max    %10.3f%n", sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double percentileMillis(long[] sorted, double percentile) {
+        int idx = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.clamp(idx, 0, sorted.length - 1)] / 1e6;
+    }
+
+    /**
+     * Reads the searches from a query log, as URIs to send them to.
+     */
+    private static List<URI> readSearches(Path logFile, String url) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        List<URI> uris = new ArrayList<>();
+        for (String line : Files.readAllLines(logFile)) {
+            if (line.isBlank()) continue;
+            QueryLog.Entry entry = objectMapper.readValue(line, QueryLog.Entry.class);
+            if (entry.query() == null || entry.cursor() != null) continue;
+            StringBuilder sb = new StringBuilder(url).append("/search?query=").append(encode(entry.query()))
+                    .append("&limit=").append(entry.limit());
+            if (entry.explain()) sb.append("&explain=true");
+            if (entry.facets()) sb.append("&facets=true");
+            if (entry.filters() != null) {
+                Set<String> categories = entry.filters().get("categories");
+                if (categories != null && !categories.isEmpty()) sb.append("&category=").append(encode(String.join(",", categories)));
+                Set<String> licenses = entry.filters().get("license");
+                if (licenses != null && !licenses.isEmpty()) sb.append("&license=").append(encode(String.join(",", licenses)));
+            }
+            uris.add(URI.create(sb.toString()));
+        }
+        return uris;
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+
+    private static Options parseOptions(String[] args) {
+        Path logFile = null;
+        String url = "http://localhost:8080";
+        int qps = 0;
+        int concurrency = 0;
+        int requests = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--url" -> url = args[++i];
+                case "--qps" -> qps = Integer.parseInt(args[++i]);
+                case "--concurrency" -> concurrency = Integer.parseInt(args[++i]);
+                case "--requests" -> requests = Integer.parseInt(args[++i]);
+                default -> logFile = Path.of(args[i]);
+            }
+        }
+        if (logFile == null || (qps > 0 && concurrency > 0)) {
+            System.err.println("Usage: QueryLogReplay <query-log> [--url URL] [--qps N | --concurrency N] [--requests N]");
+            System.exit(1);
+        }
+        if (qps <= 0 && concurrency <= 0) concurrency = 8;
+        if (url.endsWith("/")) url = url.substring(0, url.length() - 1);
+        return new Options(logFile, url, qps, concurrency, requests);
+    }
+}
@@ -0,0 +1,217 @@
+package com.andrewlalis.d_package_search.benchmarks;
+
+import com.andrewlalis.d_package_search.IndexGenerator;
+import com.andrewlalis.d_package_search.PackageSearchRequest;
+import com.andrewlalis.d_package_search.PackageSearchResponse;
+import com.andrewlalis.d_package_search.PackageSearchResult;
+import com.andrewlalis.d_package_search.impl.FilePackageFetcher;
+import com.andrewlalis.d_package_search.impl.IndexGenerations;
+import com.andrewlalis.d_package_search.impl.IndexStorage;
+import com.andrewlalis.d_package_search.impl.LucenePackageIndexer;
+import com.andrewlalis.d_package_search.impl.LucenePackageSearcher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Checks that two-phase searches, which rescore the top candidates of a cheap
+ * first pass, return the same results as searching with the full query. Each
+ * query is searched both ways, and the names of the results on its first two
+ * pages are compared. It also checks that a two-phase search's second page
+ * continues exactly where its first page ended, by comparing both pages with
+ * a single page that's twice as long.
+ * <p>
+ * Usage: {@code java -cp target/benchmarks.jar com.andrewlalis.d_package_search.benchmarks.RelevanceComparison
+ * [--index package-index | --scale N] [--queries FILE] [--window K] [--limit N]}
+ * </p>
+ * <p>
+ * By default, it searches an index of the synthetic registry dump at the
+ * given scale, which is built in a temporary directory. Queries are read
+ * from a file with one query per line, like the warm-up queries file, or
+ * the search benchmark's queries are used. It exits with status 1 if any
+ * query's results differ, or any two-phase search's pages are inconsistent.
+ * </p>
+ */
+public final class RelevanceComparison {
+    private record Options(Path indexDir, int scale, Path queriesFile, int window, int limit) {}
+
+    /**
+     * The maximum number of differing queries to print the results of.
+     */
+    private static final int MAX_REPORTED_DIFFERENCES = 20;
+
+    private RelevanceComparison() {}
+
+    public static void main(String[] args) throws Exception {
+        Options options = parseOptions(args);
+        List<String> queries = readQueries(options.queriesFile());
+        Path tempDir = null;
+        IndexGenerations generations;
+        if (options.indexDir() != null) {
+            generations = new IndexGenerations(options.indexDir());
+        } else {
+            tempDir = Files.createTempDirectory("package-index");
+            IndexGenerations tempGenerations = new IndexGenerations(tempDir);
+            new IndexGenerator(
+                    new FilePackageFetcher(SyntheticRegistryDump.getOrCreate(options.scale())),
+                    fullRebuild -> new LucenePackageIndexer(tempGenerations, fullRebuild, 64, 10),
+                    () -> {},
+                    256,
+                    Runtime.getRuntime().availableProcessors()
+            ).run(true);
+            generations = tempGenerations;
+        }
+
+        Comparison firstPages = new Comparison();
+        Comparison secondPages = new Comparison();
+        int inconsistentPages = 0;
+        try (
+                LucenePackageSearcher fullSearcher = newSearcher(generations, 0);
+                LucenePackageSearcher twoPhaseSearcher = newSearcher(generations, options.window())
+        ) {
+            for (String query : queries) {
+                PackageSearchResponse expected = fullSearcher.search(request(query, options.limit(), null));
+                PackageSearchResponse actual = twoPhaseSearcher.search(request(query, options.limit(), null));
+                firstPages.compare(query, "page 1", names(expected), names(actual));
+                if (expected.nextCursor() == null || actual.nextCursor() == null) continue;
+                PackageSearchResponse actualSecond = twoPhaseSearcher.search(request(query, options.limit(), actual.nextCursor()));
+                secondPages.compare(
+                        query,
+                        "page 2",
+                        names(fullSearcher.search(request(query, options.limit(), expected.nextCursor()))),
+                        names(actualSecond)
+                );
+                // A single page of both pages' length is only rescored if it fits in the window.
+                if (options.limit() * 2 > options.window()) continue;
+                List<String> paged = new ArrayList<>(names(actual));
+                paged.addAll(names(actualSecond));
+                List<String> single = names(twoPhaseSearcher.search(request(query, options.limit() * 2, null)));
+                if (!paged.equals(single)) {
+                    inconsistentPages++;
+                    System.out.printf("\"%s\" pages are inconsistent:%n  paged:  %s%n  single: %s%n", query, paged, single);
+                }
+            }
+        } finally {
+            if (tempDir != null) BenchmarkFiles.deleteRecursively(tempDir);
+        }
+
+        System.out.printf(
+                "Compared the top %d results of %d queries, rescoring the top %d candidates:%n",
+                options.limit(),
+                queries.size(),
+                options.window()
+        );
+        firstPages.print("Page 1");
+        secondPages.print("Page 2");
+        System.out.printf("Inconsistent two-phase pages: %d%n", inconsistentPages);
+        if (firstPages.failed() || secondPages.failed() || inconsistentPages > 0) System.exit(1);
+    }
+
+    /**
+     * Counts how the results of two searchers compare, over many queries.
+     */
+    private static final class Comparison {
+        private int compared = 0;
+        private int identical = 0;
+        private int reordered = 0;
+        private int different = 0;
+        private double overlapSum = 0;
+
+        void compare(String query, String page, List<String> expected, List<String> actual) {
+            compared++;
+            Set<String> common = new HashSet<>(expected);
+            common.retainAll(actual);
+            overlapSum += expected.isEmpty() ? 1 : (double) common.size() / expected.size();
+            if (expected.equals(actual)) {
+                identical++;
+                return;
+            }
+            if (common.size() == expected.size() && expected.size() == actual.size()) {
+                reordered++;
+            } else {
+                different++;
+            }
+            if (reordered + different <= MAX_REPORTED_DIFFERENCES) {
+                System.out.printf("\"%s\" (%s):%n  full:      %s%n  two-phase: %s%n", query, page, expected, actual);
+            }
+        }
+
+        boolean failed() {
+            return reordered + different > 0;
+        }
+
+        void print(String title) {
+            System.out.printf("%s (%d queries):%n", title, compared);
+            System.out.printf("  Identical:                 %d%n", identical);
+            System.out.printf("  Same results, reordered:   %d%n", reordered);
+            System.out.printf("  Different results:         %d%n", different);
+            System.out.printf("  Mean overlap:              %.4f%n", compared == 0 ? 1 : overlapSum / compared);
+        }
+    }
+
+    private static PackageSearchRequest request(String query, int limit, String cursor) {
+        return new PackageSearchRequest(query, limit, cursor, false, Map.of(), false);
+    }
+
+    private static LucenePackageSearcher newSearcher(IndexGenerations generations, int rescoreWindow) {
+        return new LucenePackageSearcher(
+                generations,
+                Duration.ofMinutes(1),
+                null,
+                false,
+                IndexStorage.DISK,
+                Long.MAX_VALUE,
+                rescoreWindow
+        );
+    }
+
+    private static List<String> names(PackageSearchResponse response) {
+        return response.results().stream().map(PackageSearchResult::name).toList();
+    }
+
+    /**
+     * Reads the queries to compare, skipping blank lines and comments, or
+     * gets the search benchmark's queries if no file is given.
+     */
+    private static List<String> readQueries(Path queriesFile) throws IOException {
+        if (queriesFile == null) {
+            return SearchBenchmark.QUERIES.values().stream()
+                    .flatMap(Arrays::stream)
+                    .sorted()
+                    .toList();
+        }
+        return Files.readAllLines(queriesFile).stream()
+                .map(String::trim)
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .toList();
+    }
+
+    private static Options parseOptions(String[] args) {
+        Path indexDir = null;
+        int scale = 1;
+        Path queriesFile = null;
+        int window = 100;
+        int limit = PackageSearchRequest.DEFAULT_LIMIT;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--index" -> indexDir = Path.of(args[++i]);
+                case "--scale" -> scale = Integer.parseInt(args[++i]);
+                case "--queries" -> queriesFile = Path.of(args[++i]);
+                case "--window" -> window = Integer.parseInt(args[++i]);
+                case "--limit" -> limit = Integer.parseInt(args[++i]);
+                default -> {
+                    System.err.println("Usage: RelevanceComparison [--index DIR | --scale N] [--queries FILE] [--window K] [--limit N]");
+                    System.exit(1);
+                }
+            }
+        }
+        if (window < limit) {
+            System.err.println("The window must be at least as large as the limit, or no searches are rescored.");
+            System.exit(1);
+        }
+        return new Options(indexDir, scale, queriesFile, window, limit);
+    }
+}
@@ -0,0 +1,94 @@
+package com.andrewlalis.d_package_search.benchmarks;
+
+import com.andrewlalis.d_package_search.IndexGenerator;
+import com.andrewlalis.d_package_search.PackageSearchRequest;
+import com.andrewlalis.d_package_search.PackageSearchResponse;
+import com.andrewlalis.d_package_search.impl.FilePackageFetcher;
+import com.andrewlalis.d_package_search.impl.IndexGenerations;
+import com.andrewlalis.d_package_search.impl.IndexStorage;
+import com.andrewlalis.d_package_search.impl.LucenePackageIndexer;
+import com.andrewlalis.d_package_search.impl.LucenePackageSearcher;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures search latency for different shapes of queries, against an index
+ * of a synthetic registry dump. Run it with "-prof gc" to also see how much
+ * garbage each search produces.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+    /**
+     * Queries for each query shape. Each benchmark invocation uses the next
+     * query for its shape, so results aren't skewed by a single query.
+     */
+    static final Map<String, String[]> QUERIES = Map.of(
+            "single-prefix", new String[] {"d", "js", "vi", "htt", "pars", "graph", "a", "mat"},
+            "multi-term", new String[] {"json parser", "http server", "vibe web", "sdl graphics", "unit test", "async socket"},
+            "long", new String[] {
+                    "fast json serialization library for web servers",
+                    "simple opengl graphics binding with sdl and gtk",
+                    "async network socket client and server framework",
+                    "database sql wrapper with config and logger utility"
+            }
+    );
+
+    @Param({"1", "10"})
+    public int scale;
+
+    @Param({"single-prefix", "multi-term", "long"})
+    public String queryShape;
+
+    @Param({"DISK", "HEAP"})
+    public IndexStorage storage;
+
+    /**
+     * The number of candidates rescored by the full query, where 0 searches
+     * with the full query only.
+     */
+    @Param({"0", "100"})
+    public int rescoreWindow;
+
+    private Path indexDir;
+    private LucenePackageSearcher searcher;
+    private String[] queries;
+    private int nextQuery = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        indexDir = Files.createTempDirectory("package-index");
+        IndexGenerations generations = new IndexGenerations(indexDir);
+        new IndexGenerator(
+                new FilePackageFetcher(SyntheticRegistryDump.getOrCreate(scale)),
+                fullRebuild -> new LucenePackageIndexer(generations, fullRebuild, 64, 10),
+                () -> {},
+                256,
+                Runtime.getRuntime().availableProcessors()
+        ).run(true);
+        searcher = new LucenePackageSearcher(generations, Duration.ofMinutes(1), null, false, storage, Long.MAX_VALUE, rescoreWindow);
+        queries = QUERIES.get(queryShape);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        searcher.close();
+        BenchmarkFiles.deleteRecursively(indexDir);
+    }
+
+    @Benchmark
+    public PackageSearchResponse search() {
+        String query = queries[nextQuery];
+        nextQuery = (nextQuery + 1) % queries.length;
+        return searcher.search(PackageSearchRequest.of(query));
+    }
+}
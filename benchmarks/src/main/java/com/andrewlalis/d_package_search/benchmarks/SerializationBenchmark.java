@@ -0,0 +1,51 @@
+package com.andrewlalis.d_package_search.benchmarks;
+
+import com.andrewlalis.d_package_search.PackageSearchResponse;
+import com.andrewlalis.d_package_search.PackageSearchResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to serialize a search response to JSON, the
+ * same way that the web API does for each uncached search.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+    @Param({"10", "100"})
+    public int resultCount;
+
+    @Param({"false", "true"})
+    public boolean explain;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private PackageSearchResponse response;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // A typical scoring explanation is a couple of kilobytes of text.
+        String explanation = explain ? "0.75 = sum of:\n  0.5 = weight(name_prefix:js)\n".repeat(40) : null;
+        List<PackageSearchResult> results = new ArrayList<>(resultCount);
+        for (int i = 0; i < resultCount; i++) {
+            String name = SyntheticRegistryDump.COMMON_WORDS[i % SyntheticRegistryDump.COMMON_WORDS.length] + "-" + i;
+            String url = "https://code.dlang.org/packages/" + name;
+            // Without explanations, results come with JSON that was built when the index was opened.
+            byte[] json = explain ? null : objectMapper.writeValueAsBytes(new PackageSearchResult(name, url, null, null, null));
+            results.add(new PackageSearchResult(name, url, explanation, null, json));
+        }
+        response = new PackageSearchResponse(results, "MS0xOjEwNjUzNTMyMTY6NDI", null, false, false, null, "1-1");
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        return response.toJson(objectMapper);
+    }
+}
@@ -0,0 +1,169 @@
+package com.andrewlalis.d_package_search.benchmarks;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates a synthetic Dub registry dump, in the same format as the real
+ * one, for benchmarks to use. The dump is entirely determined by its scale,
+ * so every benchmark run (and every machine) sees the same packages. A scale
+ * of 1 is roughly the size of the real registry; a scale of 10 is ten times
+ * as many packages.
+ */
+public final class SyntheticRegistryDump {
+    /**
+     * The approximate number of packages in the real registry.
+     */
+    public static final int PACKAGES_PER_SCALE = 2600;
+
+    /**
+     * Common words in D package names and descriptions, so that benchmark
+     * queries made from them match a realistic number of packages.
+     */
+    public static final String[] COMMON_WORDS = {
+            "d", "dlang", "vibe", "json", "http", "async", "math", "graphics", "sdl", "opengl", "parser",
+            "serialization", "database", "sql", "web", "server", "client", "crypto", "test", "unit", "logger",
+            "event", "gui", "gtk", "image", "audio", "network", "socket", "xml", "yaml", "toml", "config", "cli",
+            "args", "string", "regex", "dub", "derelict", "bindbc", "mir", "numeric", "container", "allocator",
+            "memory", "library", "binding", "wrapper", "simple", "fast", "framework", "tool", "utility"
+    };
+
+    private static final String[] CATEGORIES = {
+            "library", "library.std_aid", "library.data", "library.web", "library.binding", "library.graphics",
+            "application", "application.desktop", "application.server", "development.build", "development.test"
+    };
+
+    private static final String[] LICENSES = {"MIT", "BSL-1.0", "Boost", "Apache-2.0", "GPL-3.0", "LGPL-3.0", "Unlicense"};
+
+    private static final LocalDateTime NOW = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+    private SyntheticRegistryDump() {}
+
+    /**
+     * Gets a gzipped synthetic dump of the given scale, generating it if it
+     * doesn't exist yet. Dumps are kept in the system's temporary directory
+     * so they're only generated once.
+     * @param scale The scale of the dump.
+     * @return The path to the dump file.
+     * @throws IOException If the dump couldn't be written.
+     */
+    public static synchronized Path getOrCreate(int scale) throws IOException {
+        Path dir = Path.of(System.getProperty("java.io.tmpdir"), "d-package-search-benchmarks");
+        Path file = dir.resolve("registry-dump-x" + scale + ".json.gz");
+        if (Files.notExists(file)) {
+            Files.createDirectories(dir);
+            Path tempFile = Files.createTempFile(dir, "registry-dump", ".tmp");
+            try (var out = new GZIPOutputStream(Files.newOutputStream(tempFile), 65536)) {
+                write(out, scale);
+            }
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    /**
+     * Writes a synthetic dump as JSON.
+     * @param out The stream to write to. It's not closed.
+     * @param scale The scale of the dump.
+     * @throws IOException If the dump couldn't be written.
+     */
+    public static void write(OutputStream out, int scale) throws IOException {
+        Random random = new Random(scale);
+        try (JsonGenerator gen = new JsonFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            gen.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+            gen.writeStartArray();
+            for (int i = 0; i < PACKAGES_PER_SCALE * scale; i++) {
+                writePackage(gen, random, i);
+            }
+            gen.writeEndArray();
+        }
+    }
+
+    private static void writePackage(JsonGenerator gen, Random random, int index) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("name", word(random) + "-" + word(random) + "-" + index);
+        gen.writeArrayFieldStart("categories");
+        for (int i = 0; i < random.nextInt(3); i++) {
+            gen.writeString(CATEGORIES[random.nextInt(CATEGORIES.length)]);
+        }
+        gen.writeEndArray();
+
+        // Downloads follow a long-tailed distribution, like the real registry's.
+        gen.writeObjectFieldStart("stats");
+        gen.writeObjectFieldStart("downloads");
+        gen.writeNumberField("total", (long) Math.pow(10, random.nextDouble() * 6));
+        gen.writeEndObject();
+        gen.writeEndObject();
+
+        String description = sentence(random, 5 + random.nextInt(15));
+        String license = LICENSES[random.nextInt(LICENSES.length)];
+        String readme = paragraphs(random, 200 + random.nextInt(1200));
+        int versionCount = 1 + (int) (random.nextDouble() * random.nextDouble() * 40);
+        LocalDateTime date = NOW.minusDays(random.nextInt(365 * 8));
+        gen.writeArrayFieldStart("versions");
+        for (int i = 0; i < versionCount; i++) {
+            gen.writeStartObject();
+            gen.writeStringField("version", "1." + i + ".0");
+            gen.writeStringField("date", date.atOffset(ZoneOffset.UTC).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
+            gen.writeStringField("readme", readme);
+            gen.writeObjectFieldStart("info");
+            gen.writeStringField("description", description);
+            gen.writeStringField("license", license);
+            gen.writeArrayFieldStart("authors");
+            gen.writeString(word(random));
+            gen.writeEndArray();
+            gen.writeEndObject();
+            gen.writeEndObject();
+            date = date.plusDays(1 + random.nextInt(30));
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+    }
+
+    /**
+     * Picks a word that's either one of the common words, or a made-up one,
+     * so that the index has a realistically large vocabulary.
+     */
+    private static String word(Random random) {
+        if (random.nextInt(4) == 0) {
+            return COMMON_WORDS[random.nextInt(COMMON_WORDS.length)];
+        }
+        StringBuilder sb = new StringBuilder();
+        int length = 2 + random.nextInt(9);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + Math.min(25, (int) Math.abs(random.nextGaussian() * 8))));
+        }
+        return sb.toString();
+    }
+
+    private static String sentence(Random random, int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(word(random));
+        }
+        return sb.append('.').toString();
+    }
+
+    private static String paragraphs(Random random, int words) {
+        StringBuilder sb = new StringBuilder("# ").append(word(random)).append("\n\n");
+        while (words > 0) {
+            int sentenceWords = Math.min(words, 5 + random.nextInt(20));
+            sb.append(sentence(random, sentenceWords)).append(random.nextInt(5) == 0 ? "\n\n" : " ");
+            words -= sentenceWords;
+        }
+        return sb.toString();
+    }
+}
@@ -1,15 +1,13 @@
 #!/usr/bin/env bash
 
 # Simple script to deploy to d-package-search.andrewlalis.com
+# The index isn't uploaded: the server keeps its own, and copies new commits
+# from the indexer node through replication (see README.md).
 
 mvn clean package
 jarfile=$(find target/d-package-search-*.jar)
 echo "Built JAR: $jarfile"
-ssh -f root@andrewlalis.com 'systemctl stop d-package-search && rm -rf /opt/d-package-search/package-index'
-echo "Shut down d-package-search service."
-scp $jarfile root@andrewlalis.com:/opt/d-package-search/d-package-search.jar
+scp $jarfile root@andrewlalis.com:/opt/d-package-search/d-package-search.jar.new
 echo "Uploaded JAR."
-scp -r package-index root@andrewlalis.com:/opt/d-package-search/package-index
-echo "Uploaded package-index."
-ssh -f root@andrewlalis.com 'systemctl start d-package-search'
-echo "Started d-package-search service."
+ssh root@andrewlalis.com 'mv /opt/d-package-search/d-package-search.jar.new /opt/d-package-search/d-package-search.jar && systemctl restart d-package-search'
+echo "Restarted d-package-search service."
@@ -1,8 +1,13 @@
 package com.andrewlalis.d_package_search;
 
 import com.andrewlalis.d_package_search.impl.DubRegistryPackageFetcher;
+import com.andrewlalis.d_package_search.impl.FilePackageFetcher;
+import com.andrewlalis.d_package_search.impl.IndexGenerations;
+import com.andrewlalis.d_package_search.impl.IndexStorage;
 import com.andrewlalis.d_package_search.impl.LucenePackageIndexer;
 import com.andrewlalis.d_package_search.impl.LucenePackageSearcher;
+import com.andrewlalis.d_package_search.impl.LuceneReplicationSource;
+import com.andrewlalis.d_package_search.impl.ReplicationClient;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -15,39 +20,162 @@ public class DPackageSearch {
 
 	public static void main(String[] args) {
 		APPLICATION_PROPERTIES = loadApplicationProperties();
-		Path indexPath = Path.of("package-index");
+		Log.configure(
+				Log.Level.valueOf(getStringProp("log.level").trim().toUpperCase()),
+				getIntProp("log.query-sample-rate", 10)
+		);
+		IndexGenerations generations = new IndexGenerations(Path.of("package-index"));
+		if (args.length > 0 && args[0].equalsIgnoreCase("rollback")) {
+			rollback(generations);
+			return;
+		}
+		String warmupQueriesFile = getStringProp("server.warmup-queries-file");
+		LucenePackageSearcher searcher = new LucenePackageSearcher(
+				generations,
+				Duration.ofMillis(getIntProp("server.search-timeout-ms", 2000)),
+				warmupQueriesFile == null || warmupQueriesFile.isBlank() ? null : Path.of(warmupQueriesFile),
+				isPropTrue("server.preload-index"),
+				IndexStorage.parse(getStringProp("server.index-storage")),
+				getIntProp("server.index-memory-max-mb", 512) * 1024L * 1024L,
+				getIntProp("server.rescore-window", 100)
+		);
 		if (isPropTrue("indexer.enabled")) {
 			startIndexerThread(new IndexGenerator(
-					new DubRegistryPackageFetcher(),
-					() -> new LucenePackageIndexer(indexPath)
-			));
+					createPackageFetcher(),
+					fullRebuild -> new LucenePackageIndexer(
+							generations,
+							fullRebuild,
+							getIntProp("indexer.ram-buffer-mb", 64),
+							getIntProp("indexer.segments-per-tier", 10)
+					),
+					searcher::refresh,
+					getIntProp("indexer.queue-size", 256),
+					getIntProp("indexer.threads", Runtime.getRuntime().availableProcessors())
+			), args.length > 0 && args[0].equalsIgnoreCase("full-rebuild"));
+		}
+		String primaryUrl = getStringProp("replication.primary-url");
+		if (primaryUrl != null && !primaryUrl.isBlank()) {
+			startReplicationThread(new ReplicationClient(generations, primaryUrl, searcher::refresh));
 		}
 		if (isPropTrue("server.enabled")) {
-			new WebApiRunner(new LucenePackageSearcher(indexPath)).run();
+			// Open and warm up the existing index, if there is one, before accepting any searches.
+			searcher.refresh();
+			startSearcherRefreshThread(searcher);
+			new WebApiRunner(
+					searcher,
+					isPropTrue("replication.enabled") ? new LuceneReplicationSource(generations) : null
+			).run();
 		}
 	}
 
+	/**
+	 * Creates the package fetcher to use. If the "indexer.dump-file" property
+	 * is set, packages are read from that local registry dump file. Otherwise,
+	 * they're downloaded from the Dub registry, and the last download is
+	 * cached in the "indexer.dump-cache-dir" directory.
+	 * @return The package fetcher.
+	 */
+	private static PackageFetcher createPackageFetcher() {
+		String dumpFile = getStringProp("indexer.dump-file");
+		if (dumpFile != null && !dumpFile.isBlank()) {
+			return new FilePackageFetcher(Path.of(dumpFile));
+		}
+		return new DubRegistryPackageFetcher(Path.of(getStringProp("indexer.dump-cache-dir")));
+	}
+
+	/**
+	 * Rolls the index back to its previous generation. Running servers will
+	 * pick up the change the next time they refresh their searcher.
+	 * @param generations The index generations to roll back.
+	 */
+	private static void rollback(IndexGenerations generations) {
+		try {
+			if (generations.rollback()) {
+				System.out.println("Rolled back to index generation " + generations.getCurrent().orElseThrow().id() + ".");
+			} else {
+				System.err.println("There is no previous index generation to roll back to.");
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to roll back index generation: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts a new (virtual) thread that periodically refreshes the searcher,
+	 * so that it picks up index generations published by another process, or
+	 * a rollback.
+	 * @param searcher The searcher to refresh.
+	 */
+	private static void startSearcherRefreshThread(LucenePackageSearcher searcher) {
+		Thread.ofVirtual().start(() -> {
+			while (true) {
+				try {
+					Thread.sleep(Duration.ofSeconds(getIntProp("server.refresh-seconds", 30)));
+				} catch (InterruptedException e) {
+					Log.warn("Searcher refresh thread interrupted: {}", e.getMessage());
+					break;
+				}
+				searcher.refresh();
+			}
+		});
+	}
+
+	/**
+	 * Starts a new (virtual) thread that periodically copies the latest index
+	 * snapshot from the indexer node at "replication.primary-url", for search
+	 * nodes that don't build their own index.
+	 * @param replicationClient The replication client to use.
+	 */
+	private static void startReplicationThread(ReplicationClient replicationClient) {
+		Thread.ofVirtual().start(() -> {
+			while (true) {
+				try {
+					replicationClient.sync();
+				} catch (InterruptedException e) {
+					Log.warn("Replication thread interrupted: {}", e.getMessage());
+					break;
+				} catch (Exception e) {
+					Log.error("Failed to replicate the index, will try again later: {}", e.toString());
+				}
+				try {
+					Thread.sleep(Duration.ofSeconds(getIntProp("replication.poll-seconds", 60)));
+				} catch (InterruptedException e) {
+					Log.warn("Replication thread interrupted: {}", e.getMessage());
+					break;
+				}
+			}
+		});
+	}
+
 	/**
 	 * Starts a new (virtual) thread that periodically re-generates the package
-	 * index.
+	 * index. If incremental indexing is enabled, only every
+	 * "indexer.full-rebuild-every" runs is a full rebuild, and the rest only
+	 * update packages that changed.
 	 * @param indexGenerator The index generator to use.
+	 * @param fullRebuildFirst Whether to do a full rebuild on the first run.
 	 */
-	private static void startIndexerThread(IndexGenerator indexGenerator) {
+	private static void startIndexerThread(IndexGenerator indexGenerator, boolean fullRebuildFirst) {
 		Thread.ofVirtual().start(() -> {
+			int runCount = 0;
 			while (true) {
-				System.out.println("Will re-index packages in 10 seconds");
+				Log.info("Will re-index packages in 10 seconds.");
 				try {
 					Thread.sleep(Duration.ofSeconds(10));
 				} catch (InterruptedException e) {
-					System.err.println("Indexing thread interrupted: " + e.getMessage());
+					Log.warn("Indexing thread interrupted: {}", e.getMessage());
 					break;
 				}
-				System.out.println("Re-indexing packages now.");
-				indexGenerator.run();
+				Log.info("Re-indexing packages now.");
+				runCount++;
+				boolean fullRebuild = !isPropTrue("indexer.incremental") ||
+						(runCount == 1 && fullRebuildFirst) ||
+						runCount % getIntProp("indexer.full-rebuild-every", 24) == 0;
+				indexGenerator.run(fullRebuild);
 				try {
 					Thread.sleep(Duration.ofMinutes(getIntProp("indexer.delay-minutes", 60)));
 				} catch (InterruptedException e) {
-					System.err.println("Indexing thread interrupted: " + e.getMessage());
+					Log.warn("Indexing thread interrupted: {}", e.getMessage());
 					break;
 				}
 			}
@@ -59,15 +187,44 @@ public class DPackageSearch {
 		props.setProperty("server.port", "8080");
 		props.setProperty("server.host", "localhost");
 		props.setProperty("server.enabled", "true");
+		props.setProperty("server.refresh-seconds", "30");
+		props.setProperty("server.query-cache-size", "1000");
+		props.setProperty("server.max-results-limit", "100");
+		props.setProperty("server.max-batch-size", "100");
+		props.setProperty("server.batch-parallelism", "4");
+		props.setProperty("server.max-concurrent-searches", Integer.toString(Runtime.getRuntime().availableProcessors() * 2));
+		props.setProperty("server.search-queue-size", "64");
+		props.setProperty("server.search-queue-wait-ms", "100");
+		props.setProperty("server.search-timeout-ms", "2000");
+		props.setProperty("server.warmup-queries-file", "warmup-queries.txt");
+		props.setProperty("server.preload-index", "false");
+		props.setProperty("server.index-storage", "disk");
+		props.setProperty("server.index-memory-max-mb", "512");
+		props.setProperty("server.rescore-window", "100");
+		props.setProperty("server.query-log-dir", "");
+		props.setProperty("server.query-log-max-mb", "64");
+		props.setProperty("server.query-log-max-files", "10");
 		props.setProperty("indexer.enabled", "true");
 		props.setProperty("indexer.delay-minutes", "60");
+		props.setProperty("indexer.incremental", "true");
+		props.setProperty("indexer.full-rebuild-every", "24");
+		props.setProperty("indexer.queue-size", "256");
+		props.setProperty("indexer.threads", Integer.toString(Runtime.getRuntime().availableProcessors()));
+		props.setProperty("indexer.ram-buffer-mb", "64");
+		props.setProperty("indexer.segments-per-tier", "10");
+		props.setProperty("indexer.dump-cache-dir", "registry-cache");
+		props.setProperty("replication.enabled", "false");
+		props.setProperty("replication.primary-url", "");
+		props.setProperty("replication.poll-seconds", "60");
+		props.setProperty("log.level", "INFO");
+		props.setProperty("log.query-sample-rate", "10");
 		Path propsFilePath = Path.of("application.properties");
 		if (Files.exists(propsFilePath)) {
 			try (var in = Files.newInputStream(propsFilePath)) {
 				props.load(in);
-				System.out.println("Loaded application properties from " + propsFilePath);
+				Log.info("Loaded application properties from {}", propsFilePath);
 			} catch (IOException e) {
-				System.err.println("Failed to load application properties from " + propsFilePath + ": " + e.getMessage());
+				Log.error("Failed to load application properties from {}: {}", propsFilePath, e.getMessage());
 			}
 		}
 		return props;
@@ -1,46 +1,179 @@
 package com.andrewlalis.d_package_search;
 
-import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The index generator is a component that pieces all the parts of building an
- * index together into one runnable. It fetches packages using a fetcher, then
- * indexes them using an indexer obtained from the given supplier.
+ * index together into one runnable. It fetches packages using a fetcher, and
+ * passes them through a bounded queue to an indexer obtained from the given
+ * factory, so that packages are indexed while the rest are still being
+ * fetched, and only a limited number of packages are held in memory at once.
  * @param fetcher The fetcher to use to get packages.
- * @param indexerSupplier A supplier for a package indexer.
+ * @param indexerFactory A factory for package indexers.
+ * @param queueSize The maximum number of fetched packages that may be waiting
+ *                  to be indexed at any time.
+ * @param indexerThreads The number of threads that index packages
+ *                       concurrently, which must be at least 1.
+ * @param indexUpdatedListener A listener that's called once a new index has
+ *                             been committed and published, so searchers can
+ *                             refresh.
  */
 public record IndexGenerator(
         PackageFetcher fetcher,
-        ThrowableSupplier<PackageIndexer> indexerSupplier
+        IndexerFactory indexerFactory,
+        Runnable indexUpdatedListener,
+        int queueSize,
+        int indexerThreads
 ) implements Runnable {
+    /**
+     * A marker that's put on the queue once all packages have been fetched.
+     */
+    private static final PackageInfo END_OF_PACKAGES = new PackageInfo(null, null, null, 0, null);
+
+    public IndexGenerator {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("The indexer's queue size must be at least 1, but it's " + queueSize + ".");
+        }
+        if (indexerThreads < 1) {
+            throw new IllegalArgumentException("The indexer must use at least 1 thread, but it's set to " + indexerThreads + ".");
+        }
+    }
+
+    /**
+     * A factory that creates the package indexer to use for a run.
+     */
+    @FunctionalInterface
+    public interface IndexerFactory {
+        /**
+         * Creates a package indexer.
+         * @param fullRebuild Whether to rebuild the index from scratch, as
+         *                    opposed to incrementally updating it.
+         * @return The package indexer.
+         * @throws Exception If the indexer couldn't be created.
+         */
+        PackageIndexer create(boolean fullRebuild) throws Exception;
+    }
+
+    /**
+     * Fully rebuilds the index.
+     */
     @Override
     public void run() {
-        System.out.println("Generating index...");
-        Instant start;
-        Duration dur;
-        start = Instant.now();
-        Collection<PackageInfo> packages;
-        try {
-            packages = fetcher.fetch();
-            dur = Duration.between(start, Instant.now());
-            System.out.println("Fetched " + packages.size() + " in " + dur.toMillis() + " ms.");
-        } catch (IOException e) {
-            System.err.println("Failed to fetch packages: " + e.getMessage());
-            return;
-        }
+        run(true);
+    }
+
+    /**
+     * Generates the index.
+     * @param fullRebuild Whether to rebuild the index from scratch. If false,
+     *                    only packages that changed since the last run are
+     *                    re-indexed.
+     */
+    public void run(boolean fullRebuild) {
+        Log.info(fullRebuild ? "Generating index..." : "Updating index...");
+        Instant start = Instant.now();
+        BlockingQueue<PackageInfo> queue = new ArrayBlockingQueue<>(queueSize);
+        AtomicReference<Exception> fetchError = new AtomicReference<>();
+        AtomicReference<Exception> indexError = new AtomicReference<>();
+        AtomicBoolean aborted = new AtomicBoolean(false);
+        AtomicBoolean changed = new AtomicBoolean(true);
+        AtomicInteger count = new AtomicInteger(0);
+        AtomicBoolean reachedEnd = new AtomicBoolean(false);
+        // When the first package was taken off the queue, so the index phase doesn't include the download.
+        AtomicLong indexStart = new AtomicLong(0);
+        try (PackageIndexer indexer = indexerFactory.create(fullRebuild)) {
+            // Fetch packages in a separate thread, so that we can index them as soon as they're parsed.
+            Thread fetchThread = Thread.ofVirtual().name("package-fetcher").start(() -> {
+                try {
+                    changed.set(fetcher.fetch(queue::put, !fullRebuild));
+                } catch (Exception e) {
+                    fetchError.set(e);
+                }
+                if (!aborted.get()) {
+                    try {
+                        queue.put(END_OF_PACKAGES);
+                    } catch (InterruptedException e) {
+                        // Indexing was aborted, so nobody is waiting for the end of packages.
+                    }
+                }
+            });
 
-        try (PackageIndexer indexer = indexerSupplier.get()) {
-            start = Instant.now();
-            for (var pkg : packages) {
-                indexer.addToIndex(pkg);
+            /*
+            Index packages using several worker threads that all add to the
+            same (thread-safe) indexer. These are platform threads, since the
+            work is CPU-bound, and Lucene's IndexWriter synchronizes internally.
+             */
+            List<Thread> workers = new ArrayList<>(indexerThreads);
+            for (int i = 0; i < indexerThreads; i++) {
+                workers.add(Thread.ofPlatform().name("package-indexer-" + i).unstarted(() -> {
+                    try {
+                        PackageInfo pkg;
+                        while ((pkg = queue.take()) != END_OF_PACKAGES) {
+                            if (indexStart.get() == 0) indexStart.compareAndSet(0, System.nanoTime());
+                            indexer.addToIndex(pkg);
+                            count.incrementAndGet();
+                        }
+                        reachedEnd.set(true);
+                        // Put the marker back so the other workers see it too.
+                        queue.put(END_OF_PACKAGES);
+                    } catch (Exception e) {
+                        if (aborted.compareAndSet(false, true)) {
+                            indexError.set(e);
+                            fetchThread.interrupt();
+                            workers.forEach(Thread::interrupt);
+                        }
+                    }
+                }));
+            }
+            workers.forEach(Thread::start);
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            long indexEnd = System.nanoTime();
+            if (indexError.get() != null) {
+                throw indexError.get();
+            }
+            if (fetchError.get() != null) {
+                // Closing the indexer without committing discards everything that was indexed.
+                Log.error("Failed to fetch packages: {}", fetchError.get().getMessage());
+                Metrics.INDEXER_RUNS_FAILED.increment();
+                return;
+            }
+            if (!reachedEnd.get()) {
+                // Committing an incremental update would delete every package that wasn't indexed.
+                throw new IllegalStateException("Indexing stopped before all packages were indexed.");
+            }
+            if (!changed.get()) {
+                Log.info("Packages haven't changed since they were last fetched, so the index is left as-is.");
+                Metrics.INDEXER_RUNS_UNCHANGED.increment();
+                return;
             }
-            dur = Duration.between(start, Instant.now());
-            System.out.println("Indexed all packages in " + dur.toMillis() + " ms.");
+            Metrics.INDEXER_INDEX.set(indexStart.get() == 0 ? 0 : Metrics.toSeconds(indexEnd - indexStart.get()));
+            long commitStart = System.nanoTime();
+            indexer.commit();
+            fetcher.markCommitted();
+            Metrics.INDEXER_COMMIT.set(Metrics.toSeconds(System.nanoTime() - commitStart));
+            Metrics.INDEXER_RUNS_COMMITTED.increment();
+            Duration dur = Duration.between(start, Instant.now());
+            Log.info(
+                    "Fetched and indexed {} packages in {} ms using {} threads ({} packages/sec).",
+                    count.get(),
+                    dur.toMillis(),
+                    indexerThreads,
+                    count.get() * 1000 / Math.max(1, dur.toMillis())
+            );
         } catch (Exception e) {
+            Metrics.INDEXER_RUNS_FAILED.increment();
             throw new RuntimeException(e);
         }
+        indexUpdatedListener.run();
     }
 }
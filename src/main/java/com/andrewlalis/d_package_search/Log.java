@@ -0,0 +1,195 @@
+package com.andrewlalis.d_package_search;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A minimal leveled logger that writes asynchronously. Logging a message only
+ * checks the level and puts the message, with its unformatted arguments, on a
+ * bounded queue; a single background thread formats and writes queued
+ * messages in batches. This keeps string building and the console lock off
+ * the search and indexing hot paths. If the queue is full, messages are
+ * dropped rather than blocking, and the number of dropped messages is logged
+ * later.
+ * <p>
+ * Messages use "{}" placeholders for their arguments, which are formatted
+ * with {@link String#valueOf(Object)} on the background thread, so arguments
+ * should be immutable. A trailing {@link Throwable} argument that has no
+ * placeholder is logged with its stack trace.
+ * </p>
+ */
+public final class Log {
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    private record Event(long timestamp, Level level, String threadName, String message, Object[] args) {}
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int MAX_BATCH_SIZE = 512;
+
+    private static final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final LongAdder droppedCount = new LongAdder();
+    private static final LongAdder queuedCount = new LongAdder();
+    private static volatile long writtenCount = 0;
+    private static final AtomicLong queryCount = new AtomicLong();
+    private static volatile Level level = Level.INFO;
+    private static volatile int querySampleRate = 1;
+
+    static {
+        Thread writerThread = new Thread(Log::writeEvents, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {}
+
+    /**
+     * Configures logging.
+     * @param level The minimum level of messages to log.
+     * @param querySampleRate Only log one of every this many per-query
+     *                        messages. 1 logs every query.
+     */
+    public static void configure(Level level, int querySampleRate) {
+        Log.level = level;
+        Log.querySampleRate = Math.max(1, querySampleRate);
+    }
+
+    public static boolean isDebugEnabled() {
+        return level.compareTo(Level.DEBUG) <= 0;
+    }
+
+    public static boolean isInfoEnabled() {
+        return level.compareTo(Level.INFO) <= 0;
+    }
+
+    /**
+     * Determines whether a per-query message should be logged, according to
+     * the query sample rate, and the given level. Every call counts as one
+     * query, so call it once per query.
+     * @param level The level of the per-query message.
+     * @return True if the message should be logged.
+     */
+    public static boolean sampleQuery(Level level) {
+        if (Log.level.compareTo(level) > 0) return false;
+        return queryCount.getAndIncrement() % querySampleRate == 0;
+    }
+
+    public static void debug(String message, Object... args) {
+        log(Level.DEBUG, message, args);
+    }
+
+    public static void info(String message, Object... args) {
+        log(Level.INFO, message, args);
+    }
+
+    public static void warn(String message, Object... args) {
+        log(Level.WARN, message, args);
+    }
+
+    public static void error(String message, Object... args) {
+        log(Level.ERROR, message, args);
+    }
+
+    /**
+     * Logs a message, if its level is enabled.
+     * @param level The message's level.
+     * @param message The message, with "{}" placeholders for arguments.
+     * @param args The arguments.
+     */
+    public static void log(Level level, String message, Object... args) {
+        if (Log.level.compareTo(level) > 0) return;
+        Event event = new Event(System.currentTimeMillis(), level, Thread.currentThread().getName(), message, args);
+        if (queue.offer(event)) {
+            queuedCount.increment();
+        } else {
+            droppedCount.increment();
+        }
+    }
+
+    /**
+     * Waits for all queued messages to be written, for up to a second. This
+     * is done automatically when the application shuts down.
+     */
+    public static void flush() {
+        long target = queuedCount.sum();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (writtenCount < target && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private static void writeEvents() {
+        List<Event> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        StringBuilder out = new StringBuilder(8192);
+        StringBuilder err = new StringBuilder(1024);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            long dropped = droppedCount.sumThenReset();
+            if (dropped > 0) {
+                format(err, new Event(System.currentTimeMillis(), Level.WARN, "log-writer",
+                        "Dropped {} log messages because the log queue was full.", new Object[] {dropped}));
+            }
+            for (Event event : batch) {
+                StringBuilder sb = event.level().compareTo(Level.WARN) >= 0 ? err : out;
+                int length = sb.length();
+                try {
+                    format(sb, event);
+                } catch (RuntimeException e) {
+                    // An argument's toString() failed, so log what we can instead.
+                    sb.setLength(length);
+                    sb.append(event.level()).append(' ').append(event.message()).append(" (failed to format: ").append(e).append(")\n");
+                }
+            }
+            write(System.out, out);
+            write(System.err, err);
+            writtenCount += batch.size();
+            batch.clear();
+        }
+    }
+
+    private static void write(PrintStream stream, StringBuilder sb) {
+        if (sb.isEmpty()) return;
+        stream.print(sb);
+        stream.flush();
+        sb.setLength(0);
+    }
+
+    private static void format(StringBuilder sb, Event event) {
+        sb.append(Instant.ofEpochMilli(event.timestamp())).append(' ')
+                .append(event.level()).append(' ')
+                .append('[').append(event.threadName()).append("] ");
+        String message = event.message();
+        Object[] args = event.args();
+        int argIdx = 0;
+        int start = 0;
+        int idx;
+        while (args != null && argIdx < args.length && (idx = message.indexOf("{}", start)) != -1) {
+            sb.append(message, start, idx).append(args[argIdx++]);
+            start = idx + 2;
+        }
+        sb.append(message, start, message.length()).append('\n');
+        if (args != null && argIdx < args.length && args[args.length - 1] instanceof Throwable t) {
+            sb.append(t).append('\n');
+            for (StackTraceElement element : t.getStackTrace()) {
+                sb.append("\tat ").append(element).append('\n');
+            }
+        }
+    }
+}
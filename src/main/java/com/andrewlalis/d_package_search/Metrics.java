@@ -0,0 +1,312 @@
+package com.andrewlalis.d_package_search;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The application's metrics, which are served in the Prometheus text format
+ * at /metrics. Recording a metric only updates a few {@link LongAdder}s or a
+ * volatile field, so it's cheap enough for the search and indexing hot paths,
+ * and never allocates.
+ */
+public final class Metrics {
+    /**
+     * Upper bounds, in seconds, of the buckets of all latency histograms.
+     */
+    private static final double[] LATENCY_BUCKETS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private static final List<Metric> METRICS = new ArrayList<>();
+
+    // Web API requests, by endpoint.
+    private static final String REQUEST_SECONDS = "dpackagesearch_http_request_duration_seconds";
+    private static final String REQUEST_HELP = "Time taken to handle HTTP requests, by endpoint.";
+    public static final Histogram SEARCH_REQUESTS = histogram(REQUEST_SECONDS, REQUEST_HELP, "endpoint=\"search\"");
+    public static final Histogram BATCH_SEARCH_REQUESTS = histogram(REQUEST_SECONDS, REQUEST_HELP, "endpoint=\"search_batch\"");
+    public static final Histogram SUGGEST_REQUESTS = histogram(REQUEST_SECONDS, REQUEST_HELP, "endpoint=\"suggest\"");
+    public static final Histogram STATS_REQUESTS = histogram(REQUEST_SECONDS, REQUEST_HELP, "endpoint=\"stats\"");
+    public static final Histogram METRICS_REQUESTS = histogram(REQUEST_SECONDS, REQUEST_HELP, "endpoint=\"metrics\"");
+    public static final Histogram PAGE_REQUESTS = histogram(REQUEST_SECONDS, REQUEST_HELP, "endpoint=\"page\"");
+    public static final Histogram REPLICATION_REQUESTS = histogram(REQUEST_SECONDS, REQUEST_HELP, "endpoint=\"replication\"");
+    public static final Histogram OTHER_REQUESTS = histogram(REQUEST_SECONDS, REQUEST_HELP, "endpoint=\"other\"");
+
+    // Phases of an uncached search.
+    private static final String SEARCH_PHASE_SECONDS = "dpackagesearch_search_phase_duration_seconds";
+    private static final String SEARCH_PHASE_HELP = "Time taken by each phase of an uncached search.";
+    public static final Histogram SEARCH_QUERY_BUILD = histogram(SEARCH_PHASE_SECONDS, SEARCH_PHASE_HELP, "phase=\"query_build\"");
+    public static final Histogram SEARCH_EXECUTE = histogram(SEARCH_PHASE_SECONDS, SEARCH_PHASE_HELP, "phase=\"search\"");
+    public static final Histogram SEARCH_RESCORE = histogram(SEARCH_PHASE_SECONDS, SEARCH_PHASE_HELP, "phase=\"rescore\"");
+    public static final Histogram SEARCH_FUZZY_FALLBACK = histogram(SEARCH_PHASE_SECONDS, SEARCH_PHASE_HELP, "phase=\"fuzzy_fallback\"");
+    public static final Histogram SEARCH_LOAD_RESULTS = histogram(SEARCH_PHASE_SECONDS, SEARCH_PHASE_HELP, "phase=\"load_results\"");
+    public static final Histogram SEARCH_HIGHLIGHT = histogram(SEARCH_PHASE_SECONDS, SEARCH_PHASE_HELP, "phase=\"highlight\"");
+    public static final Histogram SEARCH_SERIALIZATION = histogram(SEARCH_PHASE_SECONDS, SEARCH_PHASE_HELP, "phase=\"serialization\"");
+
+    // Searches that were shed because the server was overloaded, or ran out of time.
+    private static final String SEARCHES_REJECTED = "dpackagesearch_searches_rejected_total";
+    private static final String SEARCHES_REJECTED_HELP = "Number of searches that were rejected because too many were already running, by reason.";
+    public static final Counter SEARCHES_REJECTED_QUEUE_FULL = counter(SEARCHES_REJECTED, SEARCHES_REJECTED_HELP, "reason=\"queue_full\"");
+    public static final Counter SEARCHES_REJECTED_WAIT_TIMED_OUT = counter(SEARCHES_REJECTED, SEARCHES_REJECTED_HELP, "reason=\"wait_timed_out\"");
+    public static final Counter SEARCHES_TIMED_OUT = counter(
+            "dpackagesearch_searches_timed_out_total",
+            "Number of searches that ran out of time and returned partial results.",
+            ""
+    );
+
+    // Searches that matched nothing, so similarly spelled package names were searched for instead.
+    private static final String SEARCH_FALLBACKS = "dpackagesearch_search_fuzzy_fallbacks_total";
+    private static final String SEARCH_FALLBACKS_HELP = "Number of searches that matched nothing and fell back to fuzzy matching of package names, by whether that found anything.";
+    public static final Counter SEARCH_FALLBACKS_FOUND = counter(SEARCH_FALLBACKS, SEARCH_FALLBACKS_HELP, "outcome=\"found\"");
+    public static final Counter SEARCH_FALLBACKS_EMPTY = counter(SEARCH_FALLBACKS, SEARCH_FALLBACKS_HELP, "outcome=\"empty\"");
+    public static final Counter SEARCH_DID_YOU_MEAN = counter(
+            "dpackagesearch_search_did_you_mean_total",
+            "Number of searches that matched nothing, and got a spelling correction.",
+            ""
+    );
+
+    // Indexing runs.
+    private static final String INDEXER_RUNS = "dpackagesearch_indexer_runs_total";
+    private static final String INDEXER_RUNS_HELP = "Number of indexing runs, by outcome.";
+    public static final Counter INDEXER_RUNS_COMMITTED = counter(INDEXER_RUNS, INDEXER_RUNS_HELP, "outcome=\"committed\"");
+    public static final Counter INDEXER_RUNS_UNCHANGED = counter(INDEXER_RUNS, INDEXER_RUNS_HELP, "outcome=\"unchanged\"");
+    public static final Counter INDEXER_RUNS_FAILED = counter(INDEXER_RUNS, INDEXER_RUNS_HELP, "outcome=\"failed\"");
+
+    private static final String INDEXER_PHASE_SECONDS = "dpackagesearch_indexer_last_run_phase_duration_seconds";
+    private static final String INDEXER_PHASE_HELP = "Time taken by each phase of the last indexing run. Parsing and " +
+            "indexing overlap, and parsing includes time spent waiting for indexer threads to catch up.";
+    public static final Gauge INDEXER_FETCH = gauge(INDEXER_PHASE_SECONDS, INDEXER_PHASE_HELP, "phase=\"fetch\"");
+    public static final Gauge INDEXER_PARSE = gauge(INDEXER_PHASE_SECONDS, INDEXER_PHASE_HELP, "phase=\"parse\"");
+    public static final Gauge INDEXER_INDEX = gauge(INDEXER_PHASE_SECONDS, INDEXER_PHASE_HELP, "phase=\"index\"");
+    public static final Gauge INDEXER_COMMIT = gauge(INDEXER_PHASE_SECONDS, INDEXER_PHASE_HELP, "phase=\"commit\"");
+
+    private static final String INDEXER_PACKAGES = "dpackagesearch_indexer_last_run_packages";
+    private static final String INDEXER_PACKAGES_HELP = "Number of packages in the last committed indexing run, by result.";
+    public static final Gauge INDEXER_PACKAGES_ADDED = gauge(INDEXER_PACKAGES, INDEXER_PACKAGES_HELP, "result=\"added\"");
+    public static final Gauge INDEXER_PACKAGES_UPDATED = gauge(INDEXER_PACKAGES, INDEXER_PACKAGES_HELP, "result=\"updated\"");
+    public static final Gauge INDEXER_PACKAGES_DELETED = gauge(INDEXER_PACKAGES, INDEXER_PACKAGES_HELP, "result=\"deleted\"");
+    public static final Gauge INDEXER_PACKAGES_UNCHANGED = gauge(INDEXER_PACKAGES, INDEXER_PACKAGES_HELP, "result=\"unchanged\"");
+
+    public static final Gauge SEARCHER_WARMUP = gauge(
+            "dpackagesearch_searcher_last_warmup_duration_seconds",
+            "Time taken to warm up the most recently opened searcher before it was used.",
+            ""
+    );
+
+    public static final Gauge INDEX_MEMORY = gauge(
+            "dpackagesearch_index_memory_bytes",
+            "Size of the searched index's files that are held in memory, or 0 if it's read from disk.",
+            ""
+    );
+
+    private Metrics() {}
+
+    /**
+     * Formats all metrics in the Prometheus text exposition format.
+     * @param indexStats Statistics about the index that's being searched, or
+     *                   null if there's no index yet.
+     * @return The formatted metrics.
+     */
+    public static String format(PackageSearcher.IndexStats indexStats) {
+        StringBuilder sb = new StringBuilder(8192);
+        String lastName = null;
+        for (Metric metric : METRICS) {
+            if (!metric.name.equals(lastName)) {
+                writeHeader(sb, metric.name, metric.help, metric.type());
+                lastName = metric.name;
+            }
+            metric.write(sb);
+        }
+        if (indexStats != null) {
+            writeGauge(sb, "dpackagesearch_index_size_bytes", "Size of the searched index's files.", indexStats.sizeBytes());
+            writeGauge(sb, "dpackagesearch_index_segments", "Number of segments in the searched index.", indexStats.segmentCount());
+            writeGauge(sb, "dpackagesearch_index_documents", "Number of packages in the searched index.", indexStats.documentCount());
+            writeGauge(sb, "dpackagesearch_index_generation", "Id of the searched index generation.", indexStats.generation());
+            writeGauge(sb, "dpackagesearch_index_generation_age_seconds", "Time since the searched index generation was last committed.", indexStats.ageSeconds());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Converts a duration measured with {@link System#nanoTime()} to seconds.
+     * @param nanos The duration in nanoseconds.
+     * @return The duration in seconds.
+     */
+    public static double toSeconds(long nanos) {
+        return nanos / 1_000_000_000.0;
+    }
+
+    private static Histogram histogram(String name, String help, String labels) {
+        Histogram histogram = new Histogram(name, help, labels);
+        METRICS.add(histogram);
+        return histogram;
+    }
+
+    private static Counter counter(String name, String help, String labels) {
+        Counter counter = new Counter(name, help, labels);
+        METRICS.add(counter);
+        return counter;
+    }
+
+    private static Gauge gauge(String name, String help, String labels) {
+        Gauge gauge = new Gauge(name, help, labels);
+        METRICS.add(gauge);
+        return gauge;
+    }
+
+    private static void writeHeader(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeGauge(StringBuilder sb, String name, String help, double value) {
+        writeHeader(sb, name, help, "gauge");
+        sb.append(name).append(' ').append(formatValue(value)).append('\n');
+    }
+
+    private static String formatValue(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+        if (Double.isNaN(value) || Double.isInfinite(value)) return Double.toString(value);
+        return BigDecimal.valueOf(value).toPlainString();
+    }
+
+    /**
+     * A single time series, or a histogram's set of time series, identified
+     * by its name and labels. Metrics with the same name must be created one
+     * after another, so that they're formatted as a single family.
+     */
+    private abstract static sealed class Metric permits Histogram, Counter, Gauge {
+        final String name;
+        final String help;
+        final String labels;
+
+        Metric(String name, String help, String labels) {
+            this.name = name;
+            this.help = help;
+            this.labels = labels;
+        }
+
+        abstract String type();
+
+        abstract void write(StringBuilder sb);
+
+        /**
+         * Writes this metric's name and labels, if it has any.
+         */
+        void writeSeries(StringBuilder sb) {
+            sb.append(name);
+            if (!labels.isEmpty()) sb.append('{').append(labels).append('}');
+            sb.append(' ');
+        }
+    }
+
+    /**
+     * A histogram of durations, with fixed buckets.
+     */
+    public static final class Histogram extends Metric {
+        private final long[] bucketBoundsNanos = new long[LATENCY_BUCKETS.length];
+        private final LongAdder[] bucketCounts = new LongAdder[LATENCY_BUCKETS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram(String name, String help, String labels) {
+            super(name, help, labels);
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                bucketBoundsNanos[i] = (long) (LATENCY_BUCKETS[i] * 1_000_000_000);
+            }
+            for (int i = 0; i < bucketCounts.length; i++) {
+                bucketCounts[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a duration.
+         * @param nanos The duration in nanoseconds, as measured with
+         *              {@link System#nanoTime()}.
+         */
+        public void record(long nanos) {
+            int bucket = 0;
+            while (bucket < bucketBoundsNanos.length && nanos > bucketBoundsNanos[bucket]) bucket++;
+            bucketCounts[bucket].increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Records the time since a start time.
+         * @param startNanos The start time, from {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            long cumulativeCount = 0;
+            for (int i = 0; i < bucketCounts.length; i++) {
+                cumulativeCount += bucketCounts[i].sum();
+                String bound = i < LATENCY_BUCKETS.length ? formatValue(LATENCY_BUCKETS[i]) : "+Inf";
+                sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(bound).append("\"} ")
+                        .append(cumulativeCount).append('\n');
+            }
+            sb.append(name).append("_sum{").append(labels).append("} ").append(formatValue(toSeconds(sumNanos.sum()))).append('\n');
+            sb.append(name).append("_count{").append(labels).append("} ").append(cumulativeCount).append('\n');
+        }
+    }
+
+    /**
+     * A counter that only ever increases.
+     */
+    public static final class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String help, String labels) {
+            super(name, help, labels);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            writeSeries(sb);
+            sb.append(value.sum()).append('\n');
+        }
+    }
+
+    /**
+     * A value that can be set to anything.
+     */
+    public static final class Gauge extends Metric {
+        private volatile double value = 0;
+
+        private Gauge(String name, String help, String labels) {
+            super(name, help, labels);
+        }
+
+        public void set(double value) {
+            this.value = value;
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            writeSeries(sb);
+            sb.append(formatValue(value)).append('\n');
+        }
+    }
+}
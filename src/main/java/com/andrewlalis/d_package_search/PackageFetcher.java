@@ -8,4 +8,37 @@ import java.util.Collection;
  */
 public interface PackageFetcher {
 	Collection<PackageInfo> fetch() throws IOException;
+
+	/**
+	 * Fetches packages, and passes each one to the given consumer as soon as
+	 * it's available, so that callers can start processing packages before
+	 * all of them have been fetched. Implementations should override this to
+	 * avoid holding all packages in memory at once, and to skip fetching if
+	 * nothing changed since the last time.
+	 * @param consumer The consumer to pass each package to. It may block.
+	 * @param skipIfUnchanged Whether to skip fetching if packages haven't
+	 *                        changed since they were last committed.
+	 *                        Full rebuilds pass false, so that they always
+	 *                        see every package.
+	 * @return True if packages were fetched, or false if they haven't changed
+	 * since they were last committed, in which case the consumer is never
+	 * called.
+	 * @throws Exception If packages couldn't be fetched, or the consumer
+	 * threw an exception.
+	 */
+	default boolean fetch(ThrowableConsumer<PackageInfo> consumer, boolean skipIfUnchanged) throws Exception {
+		for (PackageInfo info : fetch()) {
+			consumer.accept(info);
+		}
+		return true;
+	}
+
+	/**
+	 * Called once the packages from the last call to
+	 * {@link #fetch(ThrowableConsumer, boolean)} have been indexed and
+	 * committed. Fetchers that skip unchanged packages should only remember
+	 * what they provided once it's committed, so that a run which fails after
+	 * fetching is retried the next time.
+	 */
+	default void markCommitted() {}
 }
@@ -7,6 +7,13 @@ package com.andrewlalis.d_package_search;
 public interface PackageIndexer extends AutoCloseable {
 	void addToIndex(PackageInfo info) throws Exception;
 
+	/**
+	 * Commits all packages added so far, making them available to searchers.
+	 * An indexer that's closed without being committed discards its changes.
+	 * @throws Exception If the index couldn't be committed.
+	 */
+	default void commit() throws Exception {}
+
 	@Override
 	default void close() throws Exception {}
 }
@@ -0,0 +1,45 @@
+package com.andrewlalis.d_package_search;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A request to search for packages.
+ * @param query The query text.
+ * @param limit The maximum number of results to return.
+ * @param cursor A cursor from a previous response's
+ *               {@link PackageSearchResponse#nextCursor()}, to get the next
+ *               page of results, or null to get the first page.
+ * @param explain Whether to include an explanation of how each result was
+ *                scored. This is expensive, so it should only be used for
+ *                debugging.
+ * @param filters Filters to restrict results by, as a map of faceted field
+ *                names ("categories" or "license") to the values that are
+ *                allowed. A package must match at least one value of every
+ *                field that's filtered on.
+ * @param facets Whether to count the values of each faceted field among all
+ *               matching packages. This requires visiting every match,
+ *               instead of just the top ones, so it's only done on request.
+ */
+public record PackageSearchRequest(
+        String query,
+        int limit,
+        String cursor,
+        boolean explain,
+        Map<String, Set<String>> filters,
+        boolean facets
+) {
+    /**
+     * The number of results that are returned if no limit is given.
+     */
+    public static final int DEFAULT_LIMIT = 10;
+
+    /**
+     * Creates a request for the first page of results for a query.
+     * @param query The query text.
+     * @return The request.
+     */
+    public static PackageSearchRequest of(String query) {
+        return new PackageSearchRequest(query, DEFAULT_LIMIT, null, false, Map.of(), false);
+    }
+}
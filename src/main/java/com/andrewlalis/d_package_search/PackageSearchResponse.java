@@ -0,0 +1,111 @@
+package com.andrewlalis.d_package_search;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A page of package search results.
+ * @param results The results, from most to least relevant.
+ * @param nextCursor A cursor that can be passed in a subsequent request to get
+ *                   the next page of results, or null if there are no more.
+ *                   Cursors are only valid for the version of the index they
+ *                   were created from.
+ * @param facets For each faceted field, the number of matching packages with
+ *               each of its values, from most to least common, or null if
+ *               facets weren't requested, in which case they're left out of
+ *               the serialized response.
+ * @param timedOut Whether the search ran out of time, in which case the
+ *                 results are only the best of those found in time, and
+ *                 there's no next page. It's left out of the serialized
+ *                 response if false.
+ * @param fuzzy Whether the query matched nothing, so the results are
+ *              packages with names similar to it instead. It's left out of
+ *              the serialized response if false.
+ * @param didYouMean A corrected spelling of a query that matched nothing, or
+ *                   null if there's no correction, in which case it's left
+ *                   out of the serialized response.
+ * @param indexVersion The version of the index that was searched, which
+ *                     isn't serialized. Responses are cached and tagged
+ *                     with this, rather than the version before searching,
+ *                     since the index may change in between.
+ */
+public record PackageSearchResponse(
+        List<PackageSearchResult> results,
+        String nextCursor,
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        Map<String, Map<String, Integer>> facets,
+        @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+        boolean timedOut,
+        @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+        boolean fuzzy,
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        String didYouMean,
+        @JsonIgnore String indexVersion
+) {
+    private static final byte[] RESULTS_JSON_START = "{\"results\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NEXT_CURSOR_JSON_START = "],\"nextCursor\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HIGHLIGHTS_JSON_START = ",\"highlights\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FACETS_JSON_START = ",\"facets\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TIMED_OUT_JSON = ",\"timedOut\":true".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FUZZY_JSON = ",\"fuzzy\":true".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DID_YOU_MEAN_JSON_START = ",\"didYouMean\":".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Gets an empty response, for when there's nothing to search.
+     * @param indexVersion The version of the index, or "none" if there's no
+     *                     index to search.
+     * @return The empty response.
+     */
+    public static PackageSearchResponse empty(String indexVersion) {
+        return new PackageSearchResponse(List.of(), null, null, false, false, null, indexVersion);
+    }
+
+    /**
+     * Serializes this response to JSON. Results that have precomputed JSON
+     * are copied into the response as-is, so only the rest of the response is
+     * serialized with the given object mapper.
+     * @param objectMapper The object mapper to use.
+     * @return The JSON bytes.
+     * @throws IOException If serialization fails.
+     */
+    public byte[] toJson(ObjectMapper objectMapper) throws IOException {
+        var out = new ByteArrayOutputStream(256 + results.size() * 128);
+        out.write(RESULTS_JSON_START);
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) out.write(',');
+            PackageSearchResult result = results.get(i);
+            if (result.json() == null) {
+                out.write(objectMapper.writeValueAsBytes(result));
+            } else if (result.highlights() == null) {
+                out.write(result.json());
+            } else {
+                // Add the highlights to the end of the precomputed JSON object.
+                out.write(result.json(), 0, result.json().length - 1);
+                out.write(HIGHLIGHTS_JSON_START);
+                out.write(objectMapper.writeValueAsBytes(result.highlights()));
+                out.write('}');
+            }
+        }
+        out.write(NEXT_CURSOR_JSON_START);
+        out.write(objectMapper.writeValueAsBytes(nextCursor));
+        if (facets != null) {
+            out.write(FACETS_JSON_START);
+            out.write(objectMapper.writeValueAsBytes(facets));
+        }
+        if (timedOut) out.write(TIMED_OUT_JSON);
+        if (fuzzy) out.write(FUZZY_JSON);
+        if (didYouMean != null) {
+            out.write(DID_YOU_MEAN_JSON_START);
+            out.write(objectMapper.writeValueAsBytes(didYouMean));
+        }
+        out.write('}');
+        return out.toByteArray();
+    }
+}
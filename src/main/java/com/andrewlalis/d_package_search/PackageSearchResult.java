@@ -1,7 +1,29 @@
 package com.andrewlalis.d_package_search;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.Map;
+
+/**
+ * A single package search result.
+ * @param name The package's name.
+ * @param url The package's URL on the Dub registry.
+ * @param explanation An explanation of how the result was scored, or null if
+ *                    none was requested, in which case it's left out of the
+ *                    serialized result.
+ * @param highlights Snippets of the fields that the search matched, by
+ *                   field name, as HTML in which each match is wrapped in a
+ *                   {@code <mark>} tag, or null if there are none.
+ * @param json This result's name and URL already serialized as JSON, so
+ *             that they can be copied straight into a response, or null if
+ *             the whole result has to be serialized.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public record PackageSearchResult(
         String name,
         String url,
-        String explanation
+        String explanation,
+        Map<String, String> highlights,
+        @JsonIgnore byte[] json
 ) {}
@@ -1,7 +1,94 @@
 package com.andrewlalis.d_package_search;
 
-import java.util.SequencedCollection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public interface PackageSearcher {
-    SequencedCollection<PackageSearchResult> search(String query);
+    /**
+     * Searches for packages.
+     * @param request The search request.
+     * @return A page of search results.
+     * @throws IllegalArgumentException If the request's cursor is invalid, or
+     * is from a different version of the index.
+     */
+    PackageSearchResponse search(PackageSearchRequest request);
+
+    /**
+     * Runs many searches concurrently, all against the same version of the
+     * index.
+     * @param requests The search requests.
+     * @param executor The executor to run the searches on.
+     * @return A future for each request's response, in the same order as the
+     * requests. A future completes exceptionally with an
+     * {@link IllegalArgumentException} if its request is invalid, or a
+     * {@link RejectedExecutionException} if the executor rejected it.
+     */
+    default List<CompletableFuture<PackageSearchResponse>> searchBatch(List<PackageSearchRequest> requests, Executor executor) {
+        List<CompletableFuture<PackageSearchResponse>> futures = new ArrayList<>(requests.size());
+        for (PackageSearchRequest request : requests) {
+            try {
+                futures.add(CompletableFuture.supplyAsync(() -> search(request), executor));
+            } catch (RejectedExecutionException e) {
+                futures.add(CompletableFuture.failedFuture(e));
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Suggests package names that complete the given prefix, most popular
+     * first. This is meant to be fast enough to call on every keystroke.
+     * @param prefix The prefix to complete.
+     * @param limit The maximum number of suggestions.
+     * @return The suggested package names.
+     */
+    default List<String> suggest(String prefix, int limit) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Gets an identifier for the version of the index that's being searched,
+     * which changes whenever the index does. This can be used to tell when
+     * cached search results are no longer valid.
+     * @return The index version.
+     */
+    default String getIndexVersion() {
+        return "";
+    }
+
+    /**
+     * Checks whether this searcher is ready to serve searches at full speed.
+     * @return True if it's ready.
+     */
+    default boolean isReady() {
+        return true;
+    }
+
+    /**
+     * Gets statistics about the index that's being searched.
+     * @return The statistics, or null if there's no index yet.
+     */
+    default IndexStats getIndexStats() {
+        return null;
+    }
+
+    /**
+     * Statistics about the index that's being searched.
+     * @param sizeBytes The total size of the index's files.
+     * @param segmentCount The number of segments in the index.
+     * @param documentCount The number of packages in the index.
+     * @param generation The index generation's id.
+     * @param ageSeconds The number of seconds since the index was committed.
+     */
+    record IndexStats(
+            long sizeBytes,
+            int segmentCount,
+            int documentCount,
+            long generation,
+            long ageSeconds
+    ) {}
 }
@@ -0,0 +1,190 @@
+package com.andrewlalis.d_package_search;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * A log of every search that's made, written as one JSON object per line to
+ * a file named {@link #FILE_NAME} in a directory, so that production traffic
+ * can be replayed later. Like {@link Log}, entries are put on a bounded queue
+ * and written in batches by a background thread, and are dropped if the queue
+ * is full. Once the log file reaches its maximum size, it's renamed with the
+ * time at which it was rotated, and only the most recent rotated files are
+ * kept.
+ */
+public final class QueryLog {
+    public static final String FILE_NAME = "queries.jsonl";
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final DateTimeFormatter ROTATED_FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS")
+            .withZone(ZoneOffset.UTC);
+
+    /**
+     * A single logged search.
+     * @param timestamp The time at which the search was received, in
+     *                  milliseconds since the epoch.
+     * @param query The normalized query.
+     * @param limit The page size.
+     * @param cursor The cursor, or null for the first page.
+     * @param explain Whether explanations were requested.
+     * @param filters The filters, by field.
+     * @param facets Whether facets were requested.
+     * @param status The response's HTTP status.
+     * @param cached Whether the response came from the query cache.
+     * @param results The number of results that were returned.
+     * @param latencyMicros The time taken to handle the search, in
+     *                      microseconds.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public record Entry(
+            long timestamp,
+            String query,
+            int limit,
+            String cursor,
+            boolean explain,
+            Map<String, Set<String>> filters,
+            boolean facets,
+            int status,
+            boolean cached,
+            int results,
+            long latencyMicros
+    ) {}
+
+    private final Path dir;
+    private final long maxFileSize;
+    private final int maxRotatedFiles;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder droppedCount = new LongAdder();
+
+    /**
+     * The open log file, or null if it couldn't be opened, in which case
+     * it's opened again before the next batch is written.
+     */
+    private OutputStream out;
+    private long fileSize;
+
+    /**
+     * Creates a query log, and starts its writer thread.
+     * @param dir The directory to write the log to.
+     * @param maxFileSize The size in bytes at which the log file is rotated.
+     * @param maxRotatedFiles The number of rotated log files to keep.
+     * @throws IOException If the log file couldn't be opened.
+     */
+    public QueryLog(Path dir, long maxFileSize, int maxRotatedFiles) throws IOException {
+        this.dir = dir;
+        this.maxFileSize = maxFileSize;
+        this.maxRotatedFiles = maxRotatedFiles;
+        Files.createDirectories(dir);
+        openFile();
+        Thread writerThread = new Thread(this::writeEntries, "query-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Logs a search. This never blocks; if the queue is full, the entry is
+     * dropped.
+     * @param entry The search to log.
+     */
+    public void log(Entry entry) {
+        if (!queue.offer(entry)) {
+            droppedCount.increment();
+        }
+    }
+
+    private void writeEntries() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            try {
+                if (out == null) openFile();
+                for (Entry entry : batch) {
+                    byte[] line = objectMapper.writeValueAsBytes(entry);
+                    out.write(line);
+                    out.write('\n');
+                    fileSize += line.length + 1;
+                }
+                out.flush();
+            } catch (IOException e) {
+                Log.error("Failed to write {} query log entries: {}", batch.size(), e.getMessage());
+                closeFile();
+            }
+            if (out != null && fileSize >= maxFileSize) {
+                try {
+                    rotate();
+                } catch (IOException e) {
+                    Log.error("Failed to rotate the query log: {}", e.getMessage());
+                }
+            }
+            long dropped = droppedCount.sumThenReset();
+            if (dropped > 0) {
+                Log.warn("Dropped {} query log entries because the queue was full.", dropped);
+            }
+            batch.clear();
+        }
+    }
+
+    private void openFile() throws IOException {
+        Path file = dir.resolve(FILE_NAME);
+        out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), BUFFER_SIZE);
+        fileSize = Files.size(file);
+    }
+
+    private void closeFile() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.error("Failed to close the query log: {}", e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * Renames the log file and opens a new one. If that fails, the next batch
+     * opens the log file again, and appends to it.
+     */
+    private void rotate() throws IOException {
+        closeFile();
+        String rotatedName = "queries-" + ROTATED_FILE_TIMESTAMP.format(Instant.now()) + ".jsonl";
+        Files.move(dir.resolve(FILE_NAME), dir.resolve(rotatedName));
+        openFile();
+        // Rotated file names sort by the time they were rotated, so delete all but the newest ones.
+        List<Path> rotatedFiles;
+        try (Stream<Path> files = Files.list(dir)) {
+            rotatedFiles = files
+                    .filter(p -> p.getFileName().toString().startsWith("queries-") && p.getFileName().toString().endsWith(".jsonl"))
+                    .sorted()
+                    .toList();
+        }
+        for (int i = 0; i < rotatedFiles.size() - maxRotatedFiles; i++) {
+            Files.deleteIfExists(rotatedFiles.get(i));
+        }
+    }
+}
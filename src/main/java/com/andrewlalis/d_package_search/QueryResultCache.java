@@ -0,0 +1,123 @@
+package com.andrewlalis.d_package_search;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, least-recently-used cache of encoded search responses. Each
+ * entry is keyed by the normalized query text and parameters, and the whole
+ * cache belongs to a single version of the index: as soon as a lookup is made
+ * for a different index version, everything in the cache is discarded.
+ * @param <V> The type of cached responses.
+ */
+public final class QueryResultCache<V> {
+    private final int capacity;
+    private final Map<String, V> entries;
+    private String indexVersion = null;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Creates a cache.
+     * @param capacity The maximum number of responses to cache. If it's zero,
+     *                 nothing is ever cached.
+     */
+    public QueryResultCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                if (size() > QueryResultCache.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets a cached response.
+     * @param indexVersion The version of the index that's being searched.
+     * @param key The normalized query key.
+     * @return The cached response, or null if there is none.
+     */
+    public V get(String indexVersion, String key) {
+        if (capacity == 0) return null;
+        V value;
+        synchronized (this) {
+            checkVersion(indexVersion);
+            value = entries.get(key);
+        }
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Caches a response.
+     * @param indexVersion The version of the index that the response was
+     *                     computed from.
+     * @param key The normalized query key.
+     * @param value The encoded response.
+     */
+    public void put(String indexVersion, String key, V value) {
+        if (capacity == 0) return;
+        synchronized (this) {
+            // Don't cache responses from an index version that's already been replaced.
+            if (indexVersion.equals(this.indexVersion)) {
+                entries.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * Gets a snapshot of this cache's statistics.
+     * @return The statistics.
+     */
+    public synchronized Stats getStats() {
+        return new Stats(
+                entries.size(),
+                capacity,
+                hits.sum(),
+                misses.sum(),
+                evictions.sum(),
+                invalidations.sum()
+        );
+    }
+
+    /**
+     * Statistics about a query result cache, which are useful for sizing it.
+     * @param size The number of cached responses.
+     * @param capacity The maximum number of cached responses.
+     * @param hits The number of lookups that found a cached response.
+     * @param misses The number of lookups that didn't find a cached response.
+     * @param evictions The number of responses that were evicted to make room
+     *                  for newer ones.
+     * @param invalidations The number of times the whole cache was cleared
+     *                      because the index changed.
+     */
+    public record Stats(
+            int size,
+            int capacity,
+            long hits,
+            long misses,
+            long evictions,
+            long invalidations
+    ) {}
+
+    private void checkVersion(String indexVersion) {
+        if (!indexVersion.equals(this.indexVersion)) {
+            if (this.indexVersion != null) invalidations.increment();
+            entries.clear();
+            this.indexVersion = indexVersion;
+        }
+    }
+}
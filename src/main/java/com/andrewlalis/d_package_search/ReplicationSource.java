@@ -0,0 +1,49 @@
+package com.andrewlalis.d_package_search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * A source of index snapshots, which read-only search nodes can copy the
+ * index from, instead of building it themselves.
+ */
+public interface ReplicationSource {
+    /**
+     * Gets the latest commit of the current index generation.
+     * @return The snapshot, or null if there's no index yet.
+     * @throws IOException If the index couldn't be read.
+     */
+    Snapshot getSnapshot() throws IOException;
+
+    /**
+     * Opens one of the files of the latest snapshot.
+     * @param generation The snapshot's generation.
+     * @param name The file's name.
+     * @return A stream of the file's contents.
+     * @throws java.nio.file.NoSuchFileException If the file isn't part of the
+     * latest snapshot, which means the index changed since the snapshot was
+     * taken, so the snapshot should be fetched again.
+     * @throws IOException If the file couldn't be opened.
+     */
+    InputStream openFile(long generation, String name) throws IOException;
+
+    /**
+     * A commit of an index generation.
+     * @param generation The generation's id.
+     * @param segmentsFile The name of the commit's segments file, which is
+     *                     what makes all the other files visible, so it's
+     *                     copied last.
+     * @param files All the files in the commit, including the segments file.
+     */
+    record Snapshot(long generation, String segmentsFile, List<SnapshotFile> files) {}
+
+    /**
+     * A file in a snapshot.
+     * @param name The file's name.
+     * @param length The file's length in bytes.
+     * @param checksum The CRC32 checksum in the file's footer, which covers
+     *                 the rest of its contents.
+     */
+    record SnapshotFile(String name, long length, long checksum) {}
+}
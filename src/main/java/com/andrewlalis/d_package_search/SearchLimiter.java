@@ -0,0 +1,129 @@
+package com.andrewlalis.d_package_search;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many searches may run at once. A search that arrives while the
+ * limit is reached waits in a short queue for a while; if the queue is
+ * already full, or the search waits too long, it's rejected right away, so
+ * that an overloaded server sheds load instead of letting latency grow for
+ * every search.
+ */
+public final class SearchLimiter {
+    /**
+     * The outcome of trying to start a search.
+     */
+    public enum Admission {
+        ADMITTED,
+        QUEUE_FULL,
+        WAIT_TIMED_OUT
+    }
+
+    private final Semaphore permits;
+    private final int maxQueued;
+    private final long maxWaitNanos;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * Creates a limiter.
+     * @param maxConcurrent The maximum number of searches that may run at once.
+     * @param maxQueued The maximum number of searches that may wait to run.
+     * @param maxWait The maximum time that a search may wait to run.
+     */
+    public SearchLimiter(int maxConcurrent, int maxQueued, Duration maxWait) {
+        this.permits = new Semaphore(Math.max(1, maxConcurrent), true);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.maxWaitNanos = maxWait.toNanos();
+    }
+
+    /**
+     * Tries to start a search, waiting for a while if too many are already
+     * running. If the search is admitted, {@link #release()} must be called
+     * once it's done.
+     * @return Whether the search was admitted, or why it wasn't.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public Admission tryAcquire() throws InterruptedException {
+        if (permits.tryAcquire()) return Admission.ADMITTED;
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            Metrics.SEARCHES_REJECTED_QUEUE_FULL.increment();
+            return Admission.QUEUE_FULL;
+        }
+        try {
+            if (permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)) return Admission.ADMITTED;
+            Metrics.SEARCHES_REJECTED_WAIT_TIMED_OUT.increment();
+            return Admission.WAIT_TIMED_OUT;
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * Ends a search that was admitted.
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * Wraps an executor so that it runs the searches in a batch, which must
+     * already have been admitted, and holds a permit until it's done. One of
+     * the batch's searches at a time runs under that permit, so a batch never
+     * waits for, or is rejected by, searches of its own. Up to the given
+     * number of them may run at once, but only by taking permits that are
+     * free and that no other search is waiting for, so a batch can't crowd
+     * out single searches. Submitting a task blocks until it can run.
+     * @param executor The executor to wrap.
+     * @param parallelism The maximum number of tasks that may run at once.
+     * @return The limited executor.
+     */
+    public Executor limit(Executor executor, int parallelism) {
+        Semaphore running = new Semaphore(Math.max(1, parallelism));
+        Semaphore batchPermit = new Semaphore(1);
+        return task -> {
+            running.acquireUninterruptibly();
+            Semaphore held;
+            if (batchPermit.tryAcquire()) {
+                held = batchPermit;
+            } else if (tryAcquireFree()) {
+                held = permits;
+            } else {
+                batchPermit.acquireUninterruptibly();
+                held = batchPermit;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        held.release();
+                        running.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                held.release();
+                running.release();
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Takes a permit only if one is free and no search is waiting for it.
+     * Unlike {@link Semaphore#tryAcquire()}, this respects the semaphore's
+     * fairness.
+     */
+    private boolean tryAcquireFree() {
+        try {
+            return permits.tryAcquire(0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package com.andrewlalis.d_package_search;
+
+@FunctionalInterface
+public interface ThrowableConsumer<T> {
+    void accept(T value) throws Exception;
+}
@@ -1,33 +1,129 @@
 package com.andrewlalis.d_package_search;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.io.Content;
 import org.eclipse.jetty.server.*;
+import org.eclipse.jetty.util.BufferUtil;
 import org.eclipse.jetty.util.Callback;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.SequencedCollection;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Component that runs a simple HTTP endpoint, defaulting to localhost:8080/search?query=...
- * that allows clients to search the index via an HTTP request.
+ * that allows clients to search the index via an HTTP request. Add
+ * "explain=true" to include an explanation of each result's score. Results
+ * can be filtered with comma-separated "category" and "license" values, and
+ * "facets=true" adds counts of each category and license among all matches.
+ * Results are paged: "limit" sets the page size, and each full page includes
+ * a "nextCursor" which can be passed back as "cursor" to get the next page. Fast
+ * package name completions are available at /suggest?prefix=... Serialized
+ * responses are cached per index version, and statistics about the cache are
+ * available at /stats. Metrics are available in the Prometheus text format
+ * at /metrics. If a replication source is given, search nodes can copy the
+ * index from /replication/snapshot and /replication/file.
  */
 public final class WebApiRunner extends Handler.Abstract implements Runnable {
+    /**
+     * The maximum number of suggestions a client may ask for.
+     */
+    private static final int MAX_SUGGESTIONS = 50;
+
+    /**
+     * The maximum size of a batch search request's body.
+     */
+    private static final int MAX_BATCH_BODY_SIZE = 1024 * 1024;
+
+    /**
+     * Responses smaller than this aren't worth compressing.
+     */
+    private static final int MIN_GZIP_SIZE = 1024;
+
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+    private static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+
     private final PackageSearcher packageSearcher;
     private final ObjectMapper objectMapper;
     private final Executor threadPoolExecutor;
+    private final QueryResultCache<CachedSearch> queryCache;
+    private final int maxResultsLimit;
+    private final int maxBatchSize;
+    private final int batchParallelism;
+    private final SearchLimiter searchLimiter;
+    private final QueryLog queryLog;
+    private final StaticAsset indexPage;
+    private final ReplicationSource replicationSource;
 
-    public WebApiRunner(PackageSearcher packageSearcher) {
+    /**
+     * Creates the web API.
+     * @param packageSearcher The searcher to use.
+     * @param replicationSource The source to serve index snapshots from, or
+     *                          null if other nodes may not replicate this
+     *                          node's index.
+     */
+    public WebApiRunner(PackageSearcher packageSearcher, ReplicationSource replicationSource) {
         this.packageSearcher = packageSearcher;
+        this.replicationSource = replicationSource;
         this.objectMapper = new ObjectMapper();
         this.threadPoolExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        this.queryCache = new QueryResultCache<>(DPackageSearch.getIntProp("server.query-cache-size", 1000));
+        this.maxResultsLimit = DPackageSearch.getIntProp("server.max-results-limit", 100);
+        this.maxBatchSize = DPackageSearch.getIntProp("server.max-batch-size", 100);
+        this.batchParallelism = DPackageSearch.getIntProp("server.batch-parallelism", 4);
+        this.searchLimiter = new SearchLimiter(
+                DPackageSearch.getIntProp("server.max-concurrent-searches", Runtime.getRuntime().availableProcessors() * 2),
+                DPackageSearch.getIntProp("server.search-queue-size", 64),
+                Duration.ofMillis(DPackageSearch.getIntProp("server.search-queue-wait-ms", 100))
+        );
+        this.queryLog = openQueryLog();
+        this.indexPage = StaticAsset.load("index.html", "text/html; charset=utf-8");
+    }
+
+    /**
+     * Opens the query log, if the "server.query-log-dir" property is set.
+     * @return The query log, or null if searches shouldn't be logged.
+     */
+    private static QueryLog openQueryLog() {
+        String dir = DPackageSearch.getStringProp("server.query-log-dir");
+        if (dir == null || dir.isBlank()) return null;
+        try {
+            return new QueryLog(
+                    Path.of(dir),
+                    DPackageSearch.getIntProp("server.query-log-max-mb", 64) * 1024L * 1024L,
+                    DPackageSearch.getIntProp("server.query-log-max-files", 10)
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @Override
@@ -50,48 +146,498 @@ public final class WebApiRunner extends Handler.Abstract implements Runnable {
 
     @Override
     public boolean handle(Request request, Response response, Callback callback) throws Exception {
+        long start = System.nanoTime();
+        Metrics.Histogram requestMetric = Metrics.OTHER_REQUESTS;
         if (request.getMethod().equalsIgnoreCase("GET")) {
             HttpURI uri = request.getHttpURI();
             if (uri.getPath().equalsIgnoreCase("/search")) {
-                String query = uri.getQuery() == null ? null : parseQuery(uri);
-                if (query == null || query.isBlank()) {
-                    response.setStatus(HttpStatus.BAD_REQUEST_400);
-                    response.write(true, ByteBuffer.wrap("Missing required \"query\" parameter.".getBytes(StandardCharsets.UTF_8)), callback);
+                requestMetric = Metrics.SEARCH_REQUESTS;
+                handleSearch(request, response, callback);
+            } else if (uri.getPath().equalsIgnoreCase("/suggest")) {
+                requestMetric = Metrics.SUGGEST_REQUESTS;
+                handleSuggest(request, response, callback);
+            } else if (uri.getPath().equalsIgnoreCase("/ready")) {
+                // Load balancers should only send searches once the index has been opened and warmed up.
+                if (packageSearcher.isReady()) {
+                    write(response, callback, HttpStatus.OK_200, TEXT_CONTENT_TYPE, "Ready".getBytes(StandardCharsets.UTF_8));
                 } else {
-                    System.out.println("Searching with query \"" + query + "\".");
-                    SequencedCollection<PackageSearchResult> results = packageSearcher.search(query);
-                    response.setStatus(HttpStatus.OK_200);
-                    response.getHeaders().add("Content-Type", "application/json; charset=utf-8");
-                    byte[] responseBody = objectMapper.writeValueAsBytes(results);
-                    response.write(true, ByteBuffer.wrap(responseBody), callback);
+                    write(response, callback, HttpStatus.SERVICE_UNAVAILABLE_503, TEXT_CONTENT_TYPE, "Not ready".getBytes(StandardCharsets.UTF_8));
                 }
-            } else if (uri.getPath().equalsIgnoreCase("/index.html") || uri.getPath().equalsIgnoreCase("/")) {
-                try (var in = WebApiRunner.class.getClassLoader().getResourceAsStream("index.html")) {
-                    if (in == null) throw new IOException("Resource doesn't exist.");
-                    response.setStatus(HttpStatus.OK_200);
-                    response.getHeaders().add("Content-Type", "text/html; charset=utf-8");
-                    response.write(true, ByteBuffer.wrap(in.readAllBytes()), callback);
+            } else if (uri.getPath().equalsIgnoreCase("/stats")) {
+                requestMetric = Metrics.STATS_REQUESTS;
+                byte[] responseBody = objectMapper.writeValueAsBytes(Map.of("queryCache", queryCache.getStats()));
+                write(response, callback, HttpStatus.OK_200, JSON_CONTENT_TYPE, responseBody);
+            } else if (uri.getPath().equalsIgnoreCase("/metrics")) {
+                requestMetric = Metrics.METRICS_REQUESTS;
+                byte[] responseBody = Metrics.format(packageSearcher.getIndexStats()).getBytes(StandardCharsets.UTF_8);
+                write(response, callback, HttpStatus.OK_200, "text/plain; version=0.0.4; charset=utf-8", responseBody);
+            } else if (replicationSource != null && uri.getPath().equalsIgnoreCase("/replication/snapshot")) {
+                requestMetric = Metrics.REPLICATION_REQUESTS;
+                ReplicationSource.Snapshot snapshot = replicationSource.getSnapshot();
+                if (snapshot == null) {
+                    writeEmpty(response, callback, HttpStatus.NO_CONTENT_204);
+                } else {
+                    write(response, callback, HttpStatus.OK_200, JSON_CONTENT_TYPE, objectMapper.writeValueAsBytes(snapshot));
                 }
+            } else if (replicationSource != null && uri.getPath().equalsIgnoreCase("/replication/file")) {
+                requestMetric = Metrics.REPLICATION_REQUESTS;
+                handleReplicationFile(request, response, callback);
+            } else if (uri.getPath().equalsIgnoreCase("/index.html") || uri.getPath().equalsIgnoreCase("/")) {
+                requestMetric = Metrics.PAGE_REQUESTS;
+                handleStaticAsset(request, response, callback, indexPage);
             } else {
-                response.setStatus(HttpStatus.NOT_FOUND_404);
+                writeEmpty(response, callback, HttpStatus.NOT_FOUND_404);
             }
+        } else if (request.getMethod().equalsIgnoreCase("POST") && request.getHttpURI().getPath().equalsIgnoreCase("/search/batch")) {
+            requestMetric = Metrics.BATCH_SEARCH_REQUESTS;
+            handleBatchSearch(request, response, callback);
         } else {
-            response.setStatus(HttpStatus.METHOD_NOT_ALLOWED_405);
+            writeEmpty(response, callback, HttpStatus.METHOD_NOT_ALLOWED_405);
         }
-        callback.succeeded();
+        requestMetric.recordSince(start);
         return true;
     }
 
-    private static String parseQuery(HttpURI uri) {
-        for (String pair : URLDecoder.decode(uri.getQuery(), StandardCharsets.UTF_8).split("&")) {
+    private void handleSearch(Request request, Response response, Callback callback) throws IOException {
+        long start = System.nanoTime();
+        long timestamp = System.currentTimeMillis();
+        Map<String, String> params = parseParams(request.getHttpURI());
+        String query = normalizeQuery(params.get("query"));
+        if (query == null || query.isBlank()) {
+            write(response, callback, HttpStatus.BAD_REQUEST_400, TEXT_CONTENT_TYPE, "Missing required \"query\" parameter.".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        boolean explain = Boolean.parseBoolean(params.get("explain"));
+        int limit = Math.clamp(parseIntParam(params, "limit", PackageSearchRequest.DEFAULT_LIMIT), 1, maxResultsLimit);
+        String cursor = params.get("cursor");
+        if (cursor != null && cursor.isBlank()) cursor = null;
+        boolean facets = Boolean.parseBoolean(params.get("facets"));
+        Map<String, Set<String>> filters = new TreeMap<>();
+        parseFilterParam(params, "category", "categories", filters);
+        parseFilterParam(params, "license", "license", filters);
+
+        PackageSearchRequest searchRequest = new PackageSearchRequest(query, limit, cursor, explain, filters, facets);
+        SearchOutcome outcome = respondToSearch(request, response, callback, searchRequest);
+        if (queryLog != null) {
+            queryLog.log(new QueryLog.Entry(
+                    timestamp,
+                    query,
+                    limit,
+                    cursor,
+                    explain,
+                    filters,
+                    facets,
+                    outcome.status(),
+                    outcome.cached(),
+                    outcome.resultCount(),
+                    (System.nanoTime() - start) / 1000
+            ));
+        }
+    }
+
+    /**
+     * Responds to a search, from the cache if possible.
+     * @return What the response was, for the query log.
+     */
+    private SearchOutcome respondToSearch(
+            Request request,
+            Response response,
+            Callback callback,
+            PackageSearchRequest searchRequest
+    ) throws IOException {
+        String indexVersion = packageSearcher.getIndexVersion();
+        String cacheKey = searchRequest.query() + "\n" + searchRequest.explain() + "\n" + searchRequest.limit() + "\n" +
+                searchRequest.cursor() + "\n" + searchRequest.facets() + "\n" + searchRequest.filters();
+        CachedSearch cachedSearch = queryCache.get(indexVersion, cacheKey);
+        boolean cached = cachedSearch != null;
+        if (!cached) {
+            if (Log.sampleQuery(Log.Level.INFO)) {
+                Log.info(
+                        "Searching with query \"{}\" (limit {}, cursor {}).",
+                        searchRequest.query(),
+                        searchRequest.limit(),
+                        searchRequest.cursor()
+                );
+            }
+            if (!admitSearch(response, callback)) return new SearchOutcome(HttpStatus.SERVICE_UNAVAILABLE_503, false, 0);
+            PackageSearchResponse searchResponse;
+            try {
+                searchResponse = packageSearcher.search(searchRequest);
+            } catch (IllegalArgumentException e) {
+                write(response, callback, HttpStatus.BAD_REQUEST_400, TEXT_CONTENT_TYPE, e.getMessage().getBytes(StandardCharsets.UTF_8));
+                return new SearchOutcome(HttpStatus.BAD_REQUEST_400, false, 0);
+            } finally {
+                searchLimiter.release();
+            }
+            long serializationStart = System.nanoTime();
+            cachedSearch = new CachedSearch(EncodedResponse.of(searchResponse.toJson(objectMapper)), searchResponse.results().size());
+            Metrics.SEARCH_SERIALIZATION.recordSince(serializationStart);
+            if (searchResponse.timedOut()) {
+                // Partial results are neither cached, nor given an ETag, so the search is tried again next time.
+                write(request, response, callback, JSON_CONTENT_TYPE, cachedSearch.body());
+                return new SearchOutcome(HttpStatus.OK_200, false, cachedSearch.resultCount());
+            }
+            // The index may have changed since we checked, so use the version that was actually searched.
+            indexVersion = searchResponse.indexVersion();
+            queryCache.put(indexVersion, cacheKey, cachedSearch);
+        }
+        /*
+        The same search of the same index version always gets the same
+        response. This is only checked once there's a response, so that
+        invalid searches, and searches that time out, are never "not modified".
+         */
+        String etag = "W/\"" + indexVersion + "\"";
+        if (matchesETag(request, etag)) {
+            response.getHeaders().add(HttpHeader.ETAG, etag);
+            writeEmpty(response, callback, HttpStatus.NOT_MODIFIED_304);
+            return new SearchOutcome(HttpStatus.NOT_MODIFIED_304, cached, 0);
+        }
+        response.getHeaders().add(HttpHeader.ETAG, etag);
+        response.getHeaders().add(HttpHeader.CACHE_CONTROL, "no-cache");
+        write(request, response, callback, JSON_CONTENT_TYPE, cachedSearch.body());
+        return new SearchOutcome(HttpStatus.OK_200, cached, cachedSearch.resultCount());
+    }
+
+    /**
+     * Handles a batch of searches, given as a JSON array in the request body
+     * whose elements are either query strings, or objects with a "query" and
+     * an optional "limit". The searches all run concurrently against the same
+     * version of the index, and their responses are streamed back as a JSON
+     * array in the same order, as soon as each one and those before it are
+     * done. A search that fails is given as an object with an "error" instead.
+     */
+    private void handleBatchSearch(Request request, Response response, Callback callback) throws IOException {
+        byte[] body;
+        try (var in = Request.asInputStream(request)) {
+            body = in.readNBytes(MAX_BATCH_BODY_SIZE + 1);
+        }
+        if (body.length > MAX_BATCH_BODY_SIZE) {
+            write(response, callback, HttpStatus.PAYLOAD_TOO_LARGE_413, TEXT_CONTENT_TYPE, "Request body is too large.".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        List<PackageSearchRequest> searchRequests;
+        try {
+            searchRequests = parseBatchSearchRequests(body);
+        } catch (IOException | IllegalArgumentException e) {
+            write(response, callback, HttpStatus.BAD_REQUEST_400, TEXT_CONTENT_TYPE, ("Invalid batch search request: " + e.getMessage()).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        if (Log.sampleQuery(Log.Level.INFO)) {
+            Log.info("Searching with a batch of {} queries.", searchRequests.size());
+        }
+        /*
+        The batch is only admitted if a single search would be, and it holds
+        its permit until it's done. Its searches run one at a time under that
+        permit, and a few more at once only while other permits are free, so
+        a batch can't crowd out single searches.
+         */
+        if (!admitSearch(response, callback)) return;
+        try {
+            List<CompletableFuture<PackageSearchResponse>> futures = packageSearcher.searchBatch(
+                    searchRequests,
+                    searchLimiter.limit(threadPoolExecutor, batchParallelism)
+            );
+            response.setStatus(HttpStatus.OK_200);
+            response.getHeaders().add(HttpHeader.CONTENT_TYPE, JSON_CONTENT_TYPE);
+            try (var out = Content.Sink.asOutputStream(response)) {
+                out.write('[');
+                for (int i = 0; i < futures.size(); i++) {
+                    if (i > 0) out.write(',');
+                    byte[] result;
+                    try {
+                        PackageSearchResponse searchResponse = futures.get(i).join();
+                        long serializationStart = System.nanoTime();
+                        result = searchResponse.toJson(objectMapper);
+                        Metrics.SEARCH_SERIALIZATION.recordSince(serializationStart);
+                    } catch (CompletionException e) {
+                        String message;
+                        if (e.getCause() instanceof IllegalArgumentException || e.getCause() instanceof RejectedExecutionException) {
+                            message = e.getCause().getMessage();
+                        } else {
+                            Log.error("A search in a batch failed.", e.getCause());
+                            message = "Search failed.";
+                        }
+                        result = objectMapper.writeValueAsBytes(Map.of("error", message));
+                    }
+                    out.write(result);
+                    out.flush();
+                }
+                out.write(']');
+            } catch (IOException e) {
+                callback.failed(e);
+                return;
+            }
+        } finally {
+            searchLimiter.release();
+        }
+        callback.succeeded();
+    }
+
+    private void handleReplicationFile(Request request, Response response, Callback callback) throws IOException {
+        Map<String, String> params = parseParams(request.getHttpURI());
+        long generation;
+        try {
+            generation = Long.parseLong(params.getOrDefault("generation", ""));
+        } catch (NumberFormatException e) {
+            write(response, callback, HttpStatus.BAD_REQUEST_400, TEXT_CONTENT_TYPE, "Invalid \"generation\" parameter.".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        String name = params.get("name");
+        if (name == null || name.isBlank()) {
+            write(response, callback, HttpStatus.BAD_REQUEST_400, TEXT_CONTENT_TYPE, "Missing required \"name\" parameter.".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        InputStream in;
+        try {
+            in = replicationSource.openFile(generation, name);
+        } catch (NoSuchFileException e) {
+            // The index has changed since the client got its snapshot.
+            writeEmpty(response, callback, HttpStatus.NOT_FOUND_404);
+            return;
+        }
+        response.setStatus(HttpStatus.OK_200);
+        response.getHeaders().put(HttpHeader.CONTENT_TYPE, "application/octet-stream");
+        try (in; var out = Content.Sink.asOutputStream(response)) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            callback.failed(e);
+            return;
+        }
+        callback.succeeded();
+    }
+
+    private List<PackageSearchRequest> parseBatchSearchRequests(byte[] body) throws IOException {
+        JsonNode root = objectMapper.readTree(body);
+        if (root == null || !root.isArray()) {
+            throw new IllegalArgumentException("Expected a JSON array of queries.");
+        }
+        if (root.size() > maxBatchSize) {
+            throw new IllegalArgumentException("At most " + maxBatchSize + " queries may be searched at once.");
+        }
+        List<PackageSearchRequest> searchRequests = new ArrayList<>(root.size());
+        for (JsonNode node : root) {
+            String query;
+            int limit = PackageSearchRequest.DEFAULT_LIMIT;
+            if (node.isTextual()) {
+                query = node.asText();
+            } else if (node.isObject() && node.path("query").isTextual()) {
+                query = node.get("query").asText();
+                if (node.has("limit")) {
+                    if (!node.get("limit").canConvertToInt()) {
+                        throw new IllegalArgumentException("Limit must be an integer.");
+                    }
+                    limit = node.get("limit").asInt();
+                }
+            } else {
+                throw new IllegalArgumentException("Each query must be a string, or an object with a \"query\" string.");
+            }
+            searchRequests.add(new PackageSearchRequest(
+                    normalizeQuery(query),
+                    Math.clamp(limit, 1, maxResultsLimit),
+                    null,
+                    false,
+                    Map.of(),
+                    false
+            ));
+        }
+        return searchRequests;
+    }
+
+    /**
+     * Tries to start a search, and if the server is too busy, rejects the
+     * request with a 503 response and a Retry-After header. If the search is
+     * admitted, the search limiter must be released once it's done.
+     * @return True if the search was admitted.
+     */
+    private boolean admitSearch(Response response, Callback callback) {
+        SearchLimiter.Admission admission;
+        try {
+            admission = searchLimiter.tryAcquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admission = SearchLimiter.Admission.WAIT_TIMED_OUT;
+        }
+        if (admission == SearchLimiter.Admission.ADMITTED) return true;
+        response.getHeaders().add(HttpHeader.RETRY_AFTER, "1");
+        String message = "The server is too busy to search right now. Please try again shortly.";
+        write(response, callback, HttpStatus.SERVICE_UNAVAILABLE_503, TEXT_CONTENT_TYPE, message.getBytes(StandardCharsets.UTF_8));
+        return false;
+    }
+
+    private void handleSuggest(Request request, Response response, Callback callback) throws IOException {
+        Map<String, String> params = parseParams(request.getHttpURI());
+        String prefix = normalizeQuery(params.get("prefix"));
+        if (prefix == null || prefix.isEmpty()) {
+            write(response, callback, HttpStatus.BAD_REQUEST_400, TEXT_CONTENT_TYPE, "Missing required \"prefix\" parameter.".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        int limit = Math.clamp(parseIntParam(params, "limit", 10), 1, MAX_SUGGESTIONS);
+        List<String> suggestions = packageSearcher.suggest(prefix, limit);
+        write(response, callback, HttpStatus.OK_200, JSON_CONTENT_TYPE, objectMapper.writeValueAsBytes(suggestions));
+    }
+
+    private void handleStaticAsset(Request request, Response response, Callback callback, StaticAsset asset) {
+        response.getHeaders().add(HttpHeader.ETAG, asset.etag());
+        response.getHeaders().add(HttpHeader.CACHE_CONTROL, "no-cache");
+        if (matchesETag(request, asset.etag())) {
+            writeEmpty(response, callback, HttpStatus.NOT_MODIFIED_304);
+        } else {
+            write(request, response, callback, asset.contentType(), asset.body());
+        }
+    }
+
+    /**
+     * Checks if a request's If-None-Match header matches an ETag, using weak
+     * comparison, in which case the client already has the response. Since
+     * "*" matches any ETag, this must only be called once there's a response
+     * to send.
+     */
+    private static boolean matchesETag(Request request, String etag) {
+        String ifNoneMatch = request.getHeaders().get(HttpHeader.IF_NONE_MATCH);
+        if (ifNoneMatch == null) return false;
+        String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(opaqueTag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes a successful response, gzipped if the client accepts it and a
+     * gzipped body is available.
+     */
+    private static void write(Request request, Response response, Callback callback, String contentType, EncodedResponse body) {
+        response.getHeaders().add(HttpHeader.VARY, "Accept-Encoding");
+        String acceptEncoding = request.getHeaders().get(HttpHeader.ACCEPT_ENCODING);
+        if (body.gzipped() != null && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            response.getHeaders().add(HttpHeader.CONTENT_ENCODING, "gzip");
+            write(response, callback, HttpStatus.OK_200, contentType, body.gzipped());
+        } else {
+            write(response, callback, HttpStatus.OK_200, contentType, body.plain());
+        }
+    }
+
+    private static void write(Response response, Callback callback, int status, String contentType, byte[] body) {
+        response.setStatus(status);
+        response.getHeaders().add(HttpHeader.CONTENT_TYPE, contentType);
+        response.write(true, ByteBuffer.wrap(body), callback);
+    }
+
+    private static void writeEmpty(Response response, Callback callback, int status) {
+        response.setStatus(status);
+        response.write(true, BufferUtil.EMPTY_BUFFER, callback);
+    }
+
+    /**
+     * Parses the query parameters of a request URI.
+     * @param uri The URI to parse.
+     * @return A map of lower-case parameter names to their decoded values.
+     */
+    private static Map<String, String> parseParams(HttpURI uri) {
+        Map<String, String> params = new HashMap<>();
+        if (uri.getQuery() == null) return params;
+        for (String pair : uri.getQuery().split("&")) {
             int idx = pair.indexOf('=');
             if (idx != -1) {
-                String key = pair.substring(0, idx);
-                if (key.trim().equalsIgnoreCase("query")) {
-                    return pair.substring(idx + 1).trim().toLowerCase();
-                }
+                String key = URLDecoder.decode(pair.substring(0, idx), StandardCharsets.UTF_8);
+                String value = URLDecoder.decode(pair.substring(idx + 1), StandardCharsets.UTF_8);
+                params.put(key.trim().toLowerCase(), value);
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Parses a comma-separated list of values to filter a field by, if the
+     * parameter is present.
+     * @param params The request's parameters.
+     * @param name The name of the parameter.
+     * @param field The field that the values filter.
+     * @param filters The filters to add the values to. Values are sorted, so
+     *                that the filters can be used in a cache key.
+     */
+    private static void parseFilterParam(Map<String, String> params, String name, String field, Map<String, Set<String>> filters) {
+        String value = params.get(name);
+        if (value == null || value.isBlank()) return;
+        Set<String> values = new TreeSet<>();
+        for (String v : value.split(",")) {
+            if (!v.isBlank()) values.add(v.trim());
+        }
+        if (!values.isEmpty()) filters.put(field, values);
+    }
+
+    private static int parseIntParam(Map<String, String> params, String name, int defaultValue) {
+        try {
+            return params.containsKey(name) ? Integer.parseInt(params.get(name).trim()) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static String normalizeQuery(String query) {
+        if (query == null) return null;
+        return query.trim().toLowerCase().replaceAll("\\s+", " ");
+    }
+
+    private static byte[] gzip(byte[] data) {
+        var out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (var gzipOut = new GZIPOutputStream(out)) {
+            gzipOut.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A response body, along with its gzipped form if it's big enough to be
+     * worth compressing, so that it only has to be compressed once.
+     * @param plain The uncompressed body.
+     * @param gzipped The gzipped body, or null.
+     */
+    private record EncodedResponse(byte[] plain, byte[] gzipped) {
+        static EncodedResponse of(byte[] body) {
+            return new EncodedResponse(body, body.length >= MIN_GZIP_SIZE ? gzip(body) : null);
+        }
+    }
+
+    /**
+     * A cached search response.
+     * @param body The response body.
+     * @param resultCount The number of results in the response.
+     */
+    private record CachedSearch(EncodedResponse body, int resultCount) {}
+
+    /**
+     * What the response to a search was.
+     * @param status The HTTP status.
+     * @param cached Whether the response didn't need a search.
+     * @param resultCount The number of results in the response.
+     */
+    private record SearchOutcome(int status, boolean cached, int resultCount) {}
+
+    /**
+     * A static asset that's loaded from the classpath once, when the server
+     * starts.
+     * @param contentType The asset's content type.
+     * @param body The asset's content.
+     * @param etag A strong ETag derived from the asset's content.
+     */
+    private record StaticAsset(String contentType, EncodedResponse body, String etag) {
+        static StaticAsset load(String resource, String contentType) {
+            try (var in = WebApiRunner.class.getClassLoader().getResourceAsStream(resource)) {
+                if (in == null) throw new IOException("Resource " + resource + " doesn't exist.");
+                byte[] content = in.readAllBytes();
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+                String etag = "\"" + HexFormat.of().formatHex(hash, 0, 8) + "\"";
+                return new StaticAsset(contentType, EncodedResponse.of(content), etag);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
             }
         }
-        return null;
     }
 }
@@ -0,0 +1,109 @@
+package com.andrewlalis.d_package_search.impl;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Wraps another collector manager so that collection stops once a deadline
+ * has passed. The rest of the current segment, and any segments that haven't
+ * been searched yet, are skipped, so the result only includes the documents
+ * that were collected in time.
+ * @param <C> The wrapped collector type.
+ * @param <T> The result type.
+ */
+final class DeadlineCollectorManager<C extends Collector, T> implements CollectorManager<DeadlineCollectorManager<C, T>.DeadlineCollector, T> {
+    /**
+     * How many documents to collect between checks of the clock.
+     */
+    private static final int CHECK_INTERVAL = 256;
+
+    private final CollectorManager<C, T> delegate;
+    private final long deadlineNanos;
+    private volatile boolean timedOut = false;
+
+    /**
+     * Creates a collector manager.
+     * @param delegate The collector manager to wrap.
+     * @param deadlineNanos The deadline, as a {@link System#nanoTime()} value.
+     */
+    DeadlineCollectorManager(CollectorManager<C, T> delegate, long deadlineNanos) {
+        this.delegate = delegate;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Checks whether collection was cut short because the deadline passed.
+     * @return True if the result is partial.
+     */
+    boolean isTimedOut() {
+        return timedOut;
+    }
+
+    @Override
+    public DeadlineCollector newCollector() throws IOException {
+        return new DeadlineCollector(delegate.newCollector());
+    }
+
+    @Override
+    public T reduce(Collection<DeadlineCollector> collectors) throws IOException {
+        List<C> delegateCollectors = new ArrayList<>(collectors.size());
+        for (DeadlineCollector collector : collectors) {
+            delegateCollectors.add(collector.delegate);
+        }
+        return delegate.reduce(delegateCollectors);
+    }
+
+    private boolean checkDeadline() {
+        if (System.nanoTime() - deadlineNanos > 0) {
+            timedOut = true;
+            return true;
+        }
+        return false;
+    }
+
+    final class DeadlineCollector implements Collector {
+        private final C delegate;
+
+        private DeadlineCollector(C delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            if (checkDeadline()) throw new CollectionTerminatedException();
+            LeafCollector leafDelegate = delegate.getLeafCollector(context);
+            return new FilterLeafCollector(leafDelegate) {
+                private int count = 0;
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    if (++count % CHECK_INTERVAL == 0 && checkDeadline()) {
+                        // The searcher finishes this segment's leaf collector when it sees this.
+                        throw new CollectionTerminatedException();
+                    }
+                    in.collect(doc);
+                }
+
+                @Override
+                public DocIdSetIterator competitiveIterator() throws IOException {
+                    return in.competitiveIterator();
+                }
+            };
+        }
+
+        @Override
+        public void setWeight(Weight weight) {
+            delegate.setWeight(weight);
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return delegate.scoreMode();
+        }
+    }
+}
@@ -1,11 +1,10 @@
 package com.andrewlalis.d_package_search.impl;
 
+import com.andrewlalis.d_package_search.Log;
+import com.andrewlalis.d_package_search.Metrics;
 import com.andrewlalis.d_package_search.PackageFetcher;
 import com.andrewlalis.d_package_search.PackageInfo;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.andrewlalis.d_package_search.ThrowableConsumer;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -13,18 +12,30 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
-import java.util.function.Function;
-import java.util.zip.GZIPInputStream;
+import java.util.HexFormat;
+import java.util.Properties;
 
 /**
  * A package fetcher that pulls directly from the Dub registry's JSON dump.
+ * <p>
+ * The last downloaded dump is kept in a local cache directory, along with its
+ * ETag, Last-Modified date and content hash. These are used to send a
+ * conditional request, so that if the dump hasn't changed (the registry
+ * responds with 304 Not Modified, or the content hash is the same), it's
+ * neither parsed nor re-indexed. If the download fails, the cached dump is
+ * used instead, if its packages haven't already been committed.
+ * </p>
  */
 public class DubRegistryPackageFetcher implements PackageFetcher {
 	private final HttpClient httpClient = HttpClient.newBuilder()
@@ -33,88 +44,152 @@ public class DubRegistryPackageFetcher implements PackageFetcher {
 			.build();
 	private static final String API_URL = "https://code.dlang.org/api/packages/dump";
 
+	private final RegistryDumpParser parser = new RegistryDumpParser();
+	private final Path dumpFile;
+	private final Path metadataFile;
+
+	/**
+	 * The hash of the dump that was last provided to a consumer, or null if
+	 * none has been provided yet.
+	 */
+	private String lastProvidedHash = null;
+
+	/**
+	 * The hash of the dump whose packages were last committed, or null if
+	 * none have been committed yet.
+	 */
+	private String lastCommittedHash = null;
+
+	/**
+	 * Creates a fetcher.
+	 * @param cacheDir The directory to cache the last downloaded dump in.
+	 */
+	public DubRegistryPackageFetcher(Path cacheDir) {
+		this.dumpFile = cacheDir.resolve("registry-dump.json.gz");
+		this.metadataFile = cacheDir.resolve("registry-dump.properties");
+	}
+
+	/**
+	 * Fetches all packages from the registry, even if they haven't changed
+	 * since the last fetch.
+	 * @return The packages.
+	 * @throws IOException If packages couldn't be fetched.
+	 */
 	@Override
 	public Collection<PackageInfo> fetch() throws IOException {
-		HttpRequest req = HttpRequest.newBuilder(URI.create(API_URL))
+		Collection<PackageInfo> packages = new ArrayList<>();
+		try {
+			fetch(packages::add, false);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+		return packages;
+	}
+
+	@Override
+	public synchronized boolean fetch(ThrowableConsumer<PackageInfo> consumer, boolean skipIfUnchanged) throws Exception {
+		Properties metadata = readMetadata();
+		long start = System.nanoTime();
+		try {
+			download(metadata);
+		} catch (IOException e) {
+			if (Files.notExists(dumpFile)) throw e;
+			Log.warn("Failed to download registry dump, so the cached dump will be used: {}", e.getMessage());
+		} finally {
+			Metrics.INDEXER_FETCH.set(Metrics.toSeconds(System.nanoTime() - start));
+		}
+		String hash = metadata.getProperty("sha256");
+		if (skipIfUnchanged && hash != null && hash.equals(lastCommittedHash)) {
+			return false;
+		}
+		LocalDateTime fetchedAt = LocalDateTime.now(ZoneOffset.UTC);
+		start = System.nanoTime();
+		try (var in = RegistryDumpParser.decompressIfGzipped(Files.newInputStream(dumpFile))) {
+			parser.parse(in, fetchedAt, consumer);
+		}
+		Metrics.INDEXER_PARSE.set(Metrics.toSeconds(System.nanoTime() - start));
+		lastProvidedHash = hash;
+		return true;
+	}
+
+	@Override
+	public synchronized void markCommitted() {
+		lastCommittedHash = lastProvidedHash;
+	}
+
+	/**
+	 * Downloads the registry dump to the cache, if it's changed since it was
+	 * last downloaded.
+	 * @param metadata The cached dump's metadata. This is updated if a new
+	 *                 dump is downloaded.
+	 * @throws IOException If the dump couldn't be downloaded.
+	 */
+	private void download(Properties metadata) throws IOException {
+		HttpRequest.Builder requestBuilder = HttpRequest.newBuilder(URI.create(API_URL))
 				.GET()
 				.timeout(Duration.ofSeconds(60))
 				.header("Accept", "application/json")
-				.header("Accept-Encoding", "gzip")
-				.build();
-		try {
-			HttpResponse<InputStream> response = httpClient.send(req, HttpResponse.BodyHandlers.ofInputStream());
-			if (response.statusCode() != 200) {
-				throw new IOException("Response status code " + response.statusCode());
+				.header("Accept-Encoding", "gzip");
+		if (Files.exists(dumpFile)) {
+			if (metadata.containsKey("etag")) {
+				requestBuilder.header("If-None-Match", metadata.getProperty("etag"));
 			}
-			LocalDateTime fetchedAt = LocalDateTime.now(ZoneOffset.UTC);
-			ObjectMapper mapper = new ObjectMapper();
-			try (var in = new GZIPInputStream(response.body())) {
-				ArrayNode array = mapper.readValue(in, ArrayNode.class);
-				Collection<PackageInfo> packages = new ArrayList<>();
-				for (JsonNode node : array) {
-					if (node.isObject()) {
-						try {
-							packages.add(parsePackage((ObjectNode) node, fetchedAt));
-						} catch (Exception e) {
-							System.err.println("Failed to parse package from JSON object: " + e.getMessage());
-						}
-					}
-				}
-				return packages;
+			if (metadata.containsKey("last-modified")) {
+				requestBuilder.header("If-Modified-Since", metadata.getProperty("last-modified"));
 			}
+		}
+		HttpResponse<InputStream> response;
+		try {
+			response = httpClient.send(requestBuilder.build(), HttpResponse.BodyHandlers.ofInputStream());
 		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while downloading registry dump.", e);
+		}
+		if (response.statusCode() == 304) {
+			response.body().close();
+			Log.info("Registry dump hasn't been modified since it was last downloaded.");
+			return;
+		}
+		if (response.statusCode() != 200) {
+			response.body().close();
+			throw new IOException("Response status code " + response.statusCode());
 		}
-	}
 
-	private PackageInfo parsePackage(ObjectNode obj, LocalDateTime fetchedAt) {
-		return new PackageInfo(
-				obj.get("name").asText(),
-				mapJsonArray(obj.withArray("categories"), JsonNode::asText).toArray(new String[0]),
-				mapJsonArray(obj.withArray("versions"), this::parseVersion).toArray(new PackageInfo.VersionInfo[0]),
-				obj.get("stats").get("downloads").get("total").asLong(),
-				fetchedAt
-		);
+		// Download to a temporary file first, so a failed download never replaces the cached dump.
+		Files.createDirectories(dumpFile.getParent());
+		Path tempFile = dumpFile.resolveSibling(dumpFile.getFileName() + ".tmp");
+		MessageDigest digest = newDigest();
+		try (var in = new DigestInputStream(response.body(), digest)) {
+			Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.move(tempFile, dumpFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		metadata.clear();
+		metadata.setProperty("sha256", HexFormat.of().formatHex(digest.digest()));
+		response.headers().firstValue("ETag").ifPresent(etag -> metadata.setProperty("etag", etag));
+		response.headers().firstValue("Last-Modified").ifPresent(date -> metadata.setProperty("last-modified", date));
+		try (var out = Files.newOutputStream(metadataFile)) {
+			metadata.store(out, null);
+		}
 	}
 
-	private PackageInfo.VersionInfo parseVersion(JsonNode node) {
-		String description = null;
-		String license = null;
-		String[] authors = new String[0];
-		if (node.hasNonNull("info")) {
-			JsonNode infoNode = node.get("info");
-			if (infoNode.hasNonNull("description")) {
-				description = infoNode.get("description").asText();
-			}
-			if (infoNode.hasNonNull("license")) {
-				license = infoNode.get("license").asText();
-			}
-			if (infoNode.hasNonNull("authors")) {
-				authors = mapJsonArray(infoNode.withArray("authors"), JsonNode::asText).toArray(authors);
+	private Properties readMetadata() throws IOException {
+		Properties metadata = new Properties();
+		if (Files.exists(metadataFile) && Files.exists(dumpFile)) {
+			try (var in = Files.newInputStream(metadataFile)) {
+				metadata.load(in);
 			}
 		}
-		return new PackageInfo.VersionInfo(
-				OffsetDateTime.parse(node.get("date").asText()).atZoneSameInstant(ZoneOffset.UTC).toLocalDateTime(),
-				node.get("version").asText(),
-				description,
-				license,
-				authors,
-				node.get("readme").asText()
-		);
+		return metadata;
 	}
 
-	/**
-	 * Maps a JSON array to a list of objects, using a mapping function.
-	 * @param array The JSON array.
-	 * @param mapper The mapper function to apply to each element of the array.
-	 * @return The mapped list of objects.
-	 * @param <T> The type of the resultant list elements.
-	 */
-	private static <T> List<T> mapJsonArray(ArrayNode array, Function<JsonNode, T> mapper) {
-		List<T> list = new ArrayList<>(array.size());
-		for (JsonNode node : array) {
-			list.add(mapper.apply(node));
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
 		}
-		return list;
 	}
 }
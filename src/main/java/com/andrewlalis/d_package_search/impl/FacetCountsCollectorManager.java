@@ -0,0 +1,108 @@
+package com.andrewlalis.d_package_search.impl;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.*;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Counts how many matching documents have each value of some faceted fields,
+ * which are indexed as {@link org.apache.lucene.document.SortedSetDocValuesField}s.
+ * Within each segment, documents are counted by the segment's ordinal for
+ * each value, which is just an array increment; ordinals are only resolved to
+ * their values once the segment is done.
+ */
+final class FacetCountsCollectorManager implements CollectorManager<FacetCountsCollectorManager.FacetCountsCollector, Map<String, Map<String, Integer>>> {
+    private final List<String> fields;
+
+    /**
+     * Creates a collector manager.
+     * @param fields The fields to count values of.
+     */
+    FacetCountsCollectorManager(List<String> fields) {
+        this.fields = fields;
+    }
+
+    @Override
+    public FacetCountsCollector newCollector() {
+        return new FacetCountsCollector();
+    }
+
+    /**
+     * Merges the counts from each collector.
+     * @param collectors The collectors.
+     * @return For each field, a map of its values to the number of matching
+     * documents with that value, ordered from the most to least common.
+     */
+    @Override
+    public Map<String, Map<String, Integer>> reduce(Collection<FacetCountsCollector> collectors) {
+        Map<String, Map<String, Integer>> facets = new LinkedHashMap<>();
+        for (String field : fields) {
+            Map<String, Integer> counts = new HashMap<>();
+            for (FacetCountsCollector collector : collectors) {
+                collector.counts.get(field).forEach((value, count) -> counts.merge(value, count, Integer::sum));
+            }
+            Map<String, Integer> sortedCounts = new LinkedHashMap<>();
+            counts.entrySet().stream()
+                    .sorted(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                    .forEach(entry -> sortedCounts.put(entry.getKey(), entry.getValue()));
+            facets.put(field, sortedCounts);
+        }
+        return facets;
+    }
+
+    final class FacetCountsCollector implements Collector {
+        private final Map<String, Map<String, Integer>> counts = new HashMap<>();
+
+        private FacetCountsCollector() {
+            for (String field : fields) {
+                counts.put(field, new HashMap<>());
+            }
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            SortedSetDocValues[] values = new SortedSetDocValues[fields.size()];
+            int[][] ordinalCounts = new int[fields.size()][];
+            for (int i = 0; i < fields.size(); i++) {
+                values[i] = DocValues.getSortedSet(context.reader(), fields.get(i));
+                ordinalCounts[i] = new int[(int) values[i].getValueCount()];
+            }
+            return new LeafCollector() {
+                @Override
+                public void setScorer(Scorable scorer) {}
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    for (int i = 0; i < values.length; i++) {
+                        if (values[i].advanceExact(doc)) {
+                            for (int j = 0; j < values[i].docValueCount(); j++) {
+                                ordinalCounts[i][(int) values[i].nextOrd()]++;
+                            }
+                        }
+                    }
+                }
+
+                @Override
+                public void finish() throws IOException {
+                    for (int i = 0; i < values.length; i++) {
+                        Map<String, Integer> fieldCounts = counts.get(fields.get(i));
+                        for (int ord = 0; ord < ordinalCounts[i].length; ord++) {
+                            if (ordinalCounts[i][ord] > 0) {
+                                fieldCounts.merge(values[i].lookupOrd(ord).utf8ToString(), ordinalCounts[i][ord], Integer::sum);
+                            }
+                        }
+                    }
+                }
+            };
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+    }
+}
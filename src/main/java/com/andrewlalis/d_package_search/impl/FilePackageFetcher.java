@@ -0,0 +1,81 @@
+package com.andrewlalis.d_package_search.impl;
+
+import com.andrewlalis.d_package_search.Metrics;
+import com.andrewlalis.d_package_search.PackageFetcher;
+import com.andrewlalis.d_package_search.PackageInfo;
+import com.andrewlalis.d_package_search.ThrowableConsumer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * A package fetcher that reads packages from a local copy of the Dub
+ * registry's JSON dump, which may optionally be gzipped. This is useful for
+ * working offline, and for reproducible indexing and benchmark runs.
+ */
+public class FilePackageFetcher implements PackageFetcher {
+	private final RegistryDumpParser parser = new RegistryDumpParser();
+	private final Path dumpFile;
+
+	/**
+	 * The last-modified time of the dump file when it was last provided to a
+	 * consumer, or null if it hasn't been provided yet.
+	 */
+	private FileTime lastProvidedModifiedTime = null;
+
+	/**
+	 * The last-modified time of the dump file when its packages were last
+	 * committed, or null if they haven't been committed yet.
+	 */
+	private FileTime lastCommittedModifiedTime = null;
+
+	public FilePackageFetcher(Path dumpFile) {
+		this.dumpFile = dumpFile;
+	}
+
+	@Override
+	public Collection<PackageInfo> fetch() throws IOException {
+		Collection<PackageInfo> packages = new ArrayList<>();
+		try {
+			parse(packages::add);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+		return packages;
+	}
+
+	@Override
+	public synchronized boolean fetch(ThrowableConsumer<PackageInfo> consumer, boolean skipIfUnchanged) throws Exception {
+		FileTime modifiedTime = Files.getLastModifiedTime(dumpFile);
+		if (skipIfUnchanged && modifiedTime.equals(lastCommittedModifiedTime)) {
+			return false;
+		}
+		parse(consumer);
+		lastProvidedModifiedTime = modifiedTime;
+		return true;
+	}
+
+	@Override
+	public synchronized void markCommitted() {
+		lastCommittedModifiedTime = lastProvidedModifiedTime;
+	}
+
+	private void parse(ThrowableConsumer<PackageInfo> consumer) throws Exception {
+		LocalDateTime fetchedAt = LocalDateTime.now(ZoneOffset.UTC);
+		long start = System.nanoTime();
+		try (var in = RegistryDumpParser.decompressIfGzipped(Files.newInputStream(dumpFile))) {
+			parser.parse(in, fetchedAt, consumer);
+		}
+		// There's nothing to download, so all the time is spent parsing.
+		Metrics.INDEXER_FETCH.set(0);
+		Metrics.INDEXER_PARSE.set(Metrics.toSeconds(System.nanoTime() - start));
+	}
+}
@@ -0,0 +1,268 @@
+package com.andrewlalis.d_package_search.impl;
+
+import com.andrewlalis.d_package_search.Log;
+import com.andrewlalis.d_package_search.Metrics;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.SingleInstanceLockFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A reference manager for index searchers that, unlike Lucene's own
+ * {@link SearcherManager}, can follow the published generation of an index
+ * from one directory to another. On refresh, it checks which generation is
+ * current, and either reopens the same generation if it's unchanged, or opens
+ * a reader on the new generation's directory. Searches that already acquired
+ * a searcher keep using the old generation until they release it.
+ * <p>
+ * New searchers are created by the searcher factory before they're swapped
+ * in, so any warming that it does is finished before searches can see them.
+ * </p>
+ * <p>
+ * With {@link IndexStorage#HEAP} or {@link IndexStorage#OFF_HEAP} storage,
+ * each generation is copied into a {@link ByteBuffersDirectory}, and new
+ * commits of the same generation only copy the files that they added. A
+ * generation that's larger than the size limit is read from disk instead,
+ * and is copied back into memory once a new commit fits within the limit.
+ * </p>
+ */
+final class GenerationSearcherManager extends ReferenceManager<IndexSearcher> {
+    private final IndexGenerations generations;
+    private final SearcherFactory searcherFactory;
+    private final boolean preload;
+    private final IndexStorage storage;
+    private final long maxMemoryBytes;
+    private volatile IndexGenerations.Generation generation;
+    private Directory dir;
+
+    GenerationSearcherManager(
+            IndexGenerations generations,
+            IndexGenerations.Generation initialGeneration,
+            SearcherFactory searcherFactory,
+            boolean preload,
+            IndexStorage storage,
+            long maxMemoryBytes
+    ) throws IOException {
+        this.generations = generations;
+        this.searcherFactory = searcherFactory;
+        this.preload = preload;
+        this.storage = storage;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.generation = initialGeneration;
+        this.dir = openDirectory(initialGeneration.path());
+        try {
+            this.current = SearcherManager.getSearcher(searcherFactory, DirectoryReader.open(dir), null);
+        } catch (IOException e) {
+            dir.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the generation that the most recently refreshed searcher is using.
+     * @return The generation.
+     */
+    IndexGenerations.Generation getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Opens a generation's directory. If in-memory storage is enabled and the
+     * generation's latest commit fits within the size limit, it's copied
+     * into memory. Otherwise, if preloading is enabled, the index files are
+     * memory-mapped and loaded into the page cache as soon as they're opened,
+     * so the first searches don't have to fault them in.
+     * @param path The generation's directory.
+     * @return The directory.
+     * @throws IOException If it couldn't be opened.
+     */
+    private Directory openDirectory(Path path) throws IOException {
+        if (storage != IndexStorage.DISK) {
+            try (Directory diskDir = FSDirectory.open(path)) {
+                SegmentInfos commit = SegmentInfos.readLatestCommit(diskDir);
+                long size = commitSize(diskDir, commit.files(true));
+                if (size <= maxMemoryBytes) {
+                    ByteBuffersDirectory memoryDir = newMemoryDirectory();
+                    try {
+                        copyCommit(diskDir, memoryDir, commit);
+                    } catch (IOException e) {
+                        memoryDir.close();
+                        throw e;
+                    }
+                    Metrics.INDEX_MEMORY.set(size);
+                    Log.info("Loaded index from {} into memory, using {} KB.", path, size / 1024);
+                    return memoryDir;
+                }
+                Log.warn(
+                        "Index at {} is {} KB, which is more than the in-memory limit of {} KB, so it will be read from disk.",
+                        path, size / 1024, maxMemoryBytes / 1024
+                );
+            }
+        }
+        Metrics.INDEX_MEMORY.set(0);
+        if (preload) {
+            MMapDirectory mmapDir = new MMapDirectory(path);
+            mmapDir.setPreload(MMapDirectory.ALL_FILES);
+            return mmapDir;
+        }
+        return FSDirectory.open(path);
+    }
+
+    private ByteBuffersDirectory newMemoryDirectory() {
+        if (storage == IndexStorage.OFF_HEAP) {
+            return new ByteBuffersDirectory(
+                    new SingleInstanceLockFactory(),
+                    () -> new ByteBuffersDataOutput(
+                            ByteBuffersDataOutput.DEFAULT_MIN_BITS_PER_BLOCK,
+                            ByteBuffersDataOutput.DEFAULT_MAX_BITS_PER_BLOCK,
+                            ByteBuffer::allocateDirect,
+                            ByteBuffersDataOutput.NO_REUSE
+                    ),
+                    ByteBuffersDirectory.OUTPUT_AS_MANY_BUFFERS
+            );
+        }
+        return new ByteBuffersDirectory();
+    }
+
+    private static long commitSize(Directory dir, Collection<String> files) throws IOException {
+        long size = 0;
+        for (String file : files) {
+            size += dir.fileLength(file);
+        }
+        return size;
+    }
+
+    /**
+     * Copies the files of a commit that the in-memory directory doesn't have
+     * yet, with the segments file last, so a reader never sees a commit
+     * before all of its files are there. Index files are never modified, so
+     * files that were already copied for an earlier commit can be reused.
+     * @param diskDir The directory to copy from.
+     * @param memoryDir The directory to copy to.
+     * @param commit The commit to copy.
+     * @throws IOException If a file couldn't be copied.
+     */
+    private static void copyCommit(Directory diskDir, ByteBuffersDirectory memoryDir, SegmentInfos commit) throws IOException {
+        List<String> files = new ArrayList<>(commit.files(true));
+        files.sort(Comparator.comparing(f -> f.equals(commit.getSegmentsFileName())));
+        for (String file : files) {
+            if (!memoryDir.fileExists(file)) {
+                memoryDir.copyFrom(diskDir, file, file, IOContext.READONCE);
+            }
+        }
+    }
+
+    /**
+     * Deletes files from the in-memory directory that the given reader's
+     * commit doesn't use. Older readers that still use them keep their own
+     * references to the files' buffers, so they're unaffected.
+     * @param reader The newest reader.
+     * @throws IOException If the files couldn't be listed.
+     */
+    private void deleteUnusedMemoryFiles(DirectoryReader reader) throws IOException {
+        Collection<String> used = reader.getIndexCommit().getFileNames();
+        for (String file : dir.listAll()) {
+            if (!used.contains(file)) dir.deleteFile(file);
+        }
+    }
+
+    @Override
+    protected void decRef(IndexSearcher reference) throws IOException {
+        reference.getIndexReader().decRef();
+    }
+
+    @Override
+    protected IndexSearcher refreshIfNeeded(IndexSearcher referenceToRefresh) throws IOException {
+        IndexReader oldReader = referenceToRefresh.getIndexReader();
+        Optional<IndexGenerations.Generation> latest = generations.getCurrent();
+        if (latest.isEmpty()) return null;
+        if (latest.get().id() == generation.id()) {
+            if (storage != IndexStorage.DISK) {
+                try (Directory diskDir = FSDirectory.open(generation.path())) {
+                    SegmentInfos commit = SegmentInfos.readLatestCommit(diskDir);
+                    /*
+                    Compare with the reader's commit rather than checking for
+                    its files in memory, so that a commit which was copied
+                    but then failed to open is tried again.
+                     */
+                    String readerSegmentsFile = ((DirectoryReader) oldReader).getIndexCommit().getSegmentsFileName();
+                    if (readerSegmentsFile.equals(commit.getSegmentsFileName())) return null;
+                    long size = commitSize(diskDir, commit.files(true));
+                    if ((dir instanceof ByteBuffersDirectory) != (size <= maxMemoryBytes)) {
+                        // The generation has grown too large to keep in memory, or shrunk enough to fit, so reopen it.
+                        return openGeneration(latest.get(), oldReader);
+                    }
+                    if (dir instanceof ByteBuffersDirectory memoryDir) {
+                        copyCommit(diskDir, memoryDir, commit);
+                        Metrics.INDEX_MEMORY.set(size);
+                    }
+                }
+            }
+            DirectoryReader newReader = DirectoryReader.openIfChanged((DirectoryReader) oldReader);
+            if (newReader == null) return null;
+            IndexSearcher newSearcher = SearcherManager.getSearcher(searcherFactory, newReader, oldReader);
+            if (dir instanceof ByteBuffersDirectory) deleteUnusedMemoryFiles(newReader);
+            return newSearcher;
+        }
+        return openGeneration(latest.get(), oldReader);
+    }
+
+    /**
+     * Opens a new searcher on a generation, in a new directory.
+     * @param latest The generation to open.
+     * @param oldReader The current searcher's reader.
+     * @return The new searcher.
+     * @throws IOException If the generation couldn't be opened.
+     */
+    private IndexSearcher openGeneration(IndexGenerations.Generation latest, IndexReader oldReader) throws IOException {
+        Directory newDir = openDirectory(latest.path());
+        IndexSearcher newSearcher;
+        try {
+            newSearcher = SearcherManager.getSearcher(searcherFactory, DirectoryReader.open(newDir), oldReader);
+        } catch (IOException e) {
+            newDir.close();
+            throw e;
+        }
+        // Close the old generation's directory once the last searcher using it is released.
+        Directory oldDir = dir;
+        oldReader.getReaderCacheHelper().addClosedListener(key -> oldDir.close());
+        dir = newDir;
+        generation = latest;
+        Log.info("Switched to index generation {}.", generation.id());
+        return newSearcher;
+    }
+
+    @Override
+    protected boolean tryIncRef(IndexSearcher reference) {
+        return reference.getIndexReader().tryIncRef();
+    }
+
+    @Override
+    protected int getRefCount(IndexSearcher reference) {
+        return reference.getIndexReader().getRefCount();
+    }
+
+    @Override
+    protected void afterClose() throws IOException {
+        dir.close();
+    }
+}
@@ -0,0 +1,253 @@
+package com.andrewlalis.d_package_search.impl;
+
+import com.andrewlalis.d_package_search.Log;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Manages a root index directory that contains several generations of an
+ * index, each in its own sub-directory, like so:
+ * <pre>
+ * package-index/
+ *     generation         (pointer file naming the current and previous generation)
+ *     gen-000001/
+ *     gen-000002/
+ * </pre>
+ * New indexes are always built into a fresh generation directory, and only
+ * become visible to searchers once they're published, which atomically swaps
+ * the pointer file. The previous generation is kept around so that we can
+ * roll back to it instantly, and any other generation is deleted in the
+ * background, unless it's still being built. Only one process may create
+ * generations in a root directory.
+ */
+public class IndexGenerations {
+	private static final String POINTER_FILE = "generation";
+	private static final String GENERATION_PREFIX = "gen-";
+
+	/**
+	 * A single generation of the index.
+	 * @param id The generation's id. Newer generations have larger ids.
+	 * @param path The directory containing the generation's index.
+	 */
+	public record Generation(long id, Path path) {}
+
+	private final Path root;
+
+	/**
+	 * The ids of generations that were created but haven't been published or
+	 * deleted yet, which mustn't be cleaned up.
+	 */
+	private final Set<Long> pendingIds = new HashSet<>();
+
+	public IndexGenerations(Path root) {
+		this.root = root;
+	}
+
+	public Path getRoot() {
+		return root;
+	}
+
+	/**
+	 * Gets the currently published generation.
+	 * @return The current generation, or an empty optional if none has been
+	 * published yet.
+	 * @throws IOException If the pointer file couldn't be read.
+	 */
+	public Optional<Generation> getCurrent() throws IOException {
+		return readPointer().map(p -> p.current);
+	}
+
+	/**
+	 * Gets the previously published generation, which {@link #rollback()}
+	 * goes back to.
+	 * @return The previous generation, or an empty optional if there isn't
+	 * one.
+	 * @throws IOException If the pointer file couldn't be read.
+	 */
+	public Optional<Generation> getPrevious() throws IOException {
+		return readPointer().map(p -> p.previous);
+	}
+
+	/**
+	 * Creates a new, empty directory for the next generation of the index. It
+	 * won't be visible to searchers until {@link #publish(Generation)} is
+	 * called.
+	 * @return The new generation.
+	 * @throws IOException If the directory couldn't be created.
+	 */
+	public synchronized Generation createNext() throws IOException {
+		Files.createDirectories(root);
+		long nextId = listGenerations().stream()
+				.mapToLong(Generation::id)
+				.max().orElse(0) + 1;
+		Generation gen = generation(nextId);
+		Files.createDirectory(gen.path());
+		pendingIds.add(gen.id());
+		return gen;
+	}
+
+	/**
+	 * Creates an empty directory for a generation with a specific id, to copy
+	 * another node's generation into. If the directory already exists, it's
+	 * left over from an incomplete copy, so it's emptied first. Like
+	 * {@link #createNext()}, it won't be visible to searchers until it's
+	 * published.
+	 * @param id The generation's id.
+	 * @return The new generation.
+	 * @throws IOException If the directory couldn't be created.
+	 * @throws IllegalStateException If it's the current generation, or the
+	 * previous generation that could be rolled back to, which must be kept.
+	 */
+	public synchronized Generation create(long id) throws IOException {
+		Optional<Pointer> pointer = readPointer();
+		if (pointer.isPresent() && (
+				pointer.get().current.id() == id ||
+				(pointer.get().previous != null && pointer.get().previous.id() == id && Files.exists(pointer.get().previous.path()))
+		)) {
+			throw new IllegalStateException("Generation " + id + " is the current or previous generation.");
+		}
+		Files.createDirectories(root);
+		Generation gen = generation(id);
+		delete(gen);
+		Files.createDirectory(gen.path());
+		pendingIds.add(gen.id());
+		return gen;
+	}
+
+	/**
+	 * Publishes the given generation, making it the current one. The old
+	 * current generation becomes the previous one, and any other generations
+	 * that aren't being built are deleted in the background.
+	 * @param gen The generation to publish.
+	 * @throws IOException If the pointer file couldn't be written.
+	 */
+	public synchronized void publish(Generation gen) throws IOException {
+		Optional<Generation> previous = getCurrent();
+		pendingIds.remove(gen.id());
+		if (previous.isPresent() && previous.get().id() == gen.id()) return;
+		writePointer(new Pointer(gen, previous.orElse(null)));
+		Thread.ofVirtual().start(this::deleteOldGenerations);
+	}
+
+	/**
+	 * Swaps the current and previous generations, so that searchers go back
+	 * to using the previous index.
+	 * @return True if we rolled back, or false if there's no previous
+	 * generation to roll back to.
+	 * @throws IOException If the pointer file couldn't be read or written.
+	 */
+	public synchronized boolean rollback() throws IOException {
+		Optional<Pointer> pointer = readPointer();
+		if (pointer.isEmpty() || pointer.get().previous == null || Files.notExists(pointer.get().previous.path())) {
+			return false;
+		}
+		writePointer(new Pointer(pointer.get().previous, pointer.get().current));
+		return true;
+	}
+
+	/**
+	 * Deletes a generation's directory and everything in it. This is used to
+	 * discard generations that were never published, like failed builds.
+	 * @param gen The generation to delete.
+	 * @throws IOException If the generation couldn't be deleted.
+	 */
+	public synchronized void delete(Generation gen) throws IOException {
+		pendingIds.remove(gen.id());
+		if (Files.notExists(gen.path())) return;
+		try (Stream<Path> files = Files.walk(gen.path())) {
+			for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	/**
+	 * Deletes all generations other than the current and previous ones, and
+	 * those that are still being built. This includes newer generations that
+	 * were never published, because a build crashed, or that were rolled back
+	 * from and then replaced.
+	 */
+	private synchronized void deleteOldGenerations() {
+		try {
+			Optional<Pointer> pointer = readPointer();
+			if (pointer.isEmpty()) return;
+			Set<Long> keptIds = new HashSet<>(pendingIds);
+			keptIds.add(pointer.get().current.id());
+			if (pointer.get().previous != null) keptIds.add(pointer.get().previous.id());
+			for (Generation gen : listGenerations()) {
+				if (!keptIds.contains(gen.id())) {
+					delete(gen);
+					Log.info("Deleted unused index generation {}.", gen.id());
+				}
+			}
+		} catch (IOException e) {
+			Log.error("Failed to delete old index generations: {}", e.getMessage());
+		}
+	}
+
+	private List<Generation> listGenerations() throws IOException {
+		if (Files.notExists(root)) return Collections.emptyList();
+		try (Stream<Path> paths = Files.list(root)) {
+			return paths
+					.filter(Files::isDirectory)
+					.map(p -> p.getFileName().toString())
+					.filter(name -> name.startsWith(GENERATION_PREFIX))
+					.map(name -> parseId(name.substring(GENERATION_PREFIX.length())))
+					.filter(OptionalLong::isPresent)
+					.map(id -> generation(id.getAsLong()))
+					.toList();
+		}
+	}
+
+	/**
+	 * Parses a generation directory's id, so that other directories whose
+	 * names happen to start with the prefix are ignored.
+	 */
+	private static OptionalLong parseId(String s) {
+		try {
+			return OptionalLong.of(Long.parseLong(s));
+		} catch (NumberFormatException e) {
+			return OptionalLong.empty();
+		}
+	}
+
+	private Generation generation(long id) {
+		return new Generation(id, root.resolve(String.format("%s%06d", GENERATION_PREFIX, id)));
+	}
+
+	private record Pointer(Generation current, Generation previous) {}
+
+	private Optional<Pointer> readPointer() throws IOException {
+		Path file = root.resolve(POINTER_FILE);
+		if (Files.notExists(file)) return Optional.empty();
+		Properties props = new Properties();
+		try (var in = Files.newInputStream(file)) {
+			props.load(in);
+		}
+		Generation current = generation(Long.parseLong(props.getProperty("current")));
+		Generation previous = props.containsKey("previous")
+				? generation(Long.parseLong(props.getProperty("previous")))
+				: null;
+		return Optional.of(new Pointer(current, previous));
+	}
+
+	/**
+	 * Writes the pointer file to a temporary file first, and then moves it
+	 * into place, so that readers never see a partially-written pointer.
+	 */
+	private void writePointer(Pointer pointer) throws IOException {
+		Properties props = new Properties();
+		props.setProperty("current", Long.toString(pointer.current.id()));
+		if (pointer.previous != null) {
+			props.setProperty("previous", Long.toString(pointer.previous.id()));
+		}
+		Path tempFile = root.resolve(POINTER_FILE + ".tmp");
+		try (var out = Files.newOutputStream(tempFile)) {
+			props.store(out, null);
+		}
+		Files.move(tempFile, root.resolve(POINTER_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+}
@@ -0,0 +1,33 @@
+package com.andrewlalis.d_package_search.impl;
+
+/**
+ * Where searchers read the index from.
+ */
+public enum IndexStorage {
+    /**
+     * The index is read from its files on disk, through the OS page cache.
+     */
+    DISK,
+
+    /**
+     * Each index generation is copied into byte arrays on the Java heap.
+     */
+    HEAP,
+
+    /**
+     * Each index generation is copied into direct byte buffers, outside of
+     * the Java heap, so it doesn't add to garbage collection work.
+     */
+    OFF_HEAP;
+
+    /**
+     * Parses a storage mode from a property value, like "disk", "heap" or
+     * "off-heap".
+     * @param value The value to parse.
+     * @return The storage mode.
+     * @throws IllegalArgumentException If it isn't a valid storage mode.
+     */
+    public static IndexStorage parse(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -1,37 +1,135 @@
 package com.andrewlalis.d_package_search.impl;
 
+import com.andrewlalis.d_package_search.Log;
+import com.andrewlalis.d_package_search.Metrics;
 import com.andrewlalis.d_package_search.PackageIndexer;
 import com.andrewlalis.d_package_search.PackageInfo;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.*;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
-import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An indexer that produces a Lucene index, which is a directory, composed of
  * possibly many index segments.
+ * <p>
+ * A full rebuild builds a brand-new generation of the index, which is only
+ * published for searchers to use once it's been committed, so searches never
+ * see a partially-built index. An incremental indexer instead updates the
+ * current generation in place: it compares a fingerprint of each package to
+ * the one stored in the index, only re-indexes packages that changed, and
+ * deletes packages that are no longer present once it's committed. Lucene
+ * commits are atomic, so searchers still only ever see a complete index.
+ * </p>
  */
 public class LucenePackageIndexer implements PackageIndexer {
+	/**
+	 * The version of the set of fields that we index for each package. It's
+	 * part of every package's fingerprint, so whenever the indexed fields
+	 * change, this should be incremented so that incremental indexing will
+	 * re-index all packages.
+	 */
+	private static final int SCHEMA_VERSION = 5;
+
+	/**
+	 * The type of the fields that hold the prefixes of another field's terms.
+	 * They're only used for matching, so positions aren't needed.
+	 */
+	private static final FieldType PREFIX_FIELD_TYPE = new FieldType();
+	static {
+		PREFIX_FIELD_TYPE.setTokenized(true);
+		PREFIX_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+		PREFIX_FIELD_TYPE.freeze();
+	}
+
+	/**
+	 * The type of the text fields that search results show highlighted
+	 * snippets of. They're stored, and their postings include offsets, so
+	 * that snippets can be built without analyzing the text again.
+	 */
+	private static final FieldType HIGHLIGHTED_TEXT_FIELD_TYPE = new FieldType(TextField.TYPE_STORED);
+	static {
+		HIGHLIGHTED_TEXT_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+		HIGHLIGHTED_TEXT_FIELD_TYPE.freeze();
+	}
+
+	private final IndexGenerations generations;
+	private final IndexGenerations.Generation generation;
+	private final boolean incremental;
 	private final IndexWriter indexWriter;
 	private final Directory dir;
 	private final Analyzer analyzer;
+	private boolean committed = false;
 
-	public LucenePackageIndexer(Path indexPath) throws IOException {
-		this.dir = FSDirectory.open(indexPath);
-		this.analyzer = new StandardAnalyzer();
+	/**
+	 * Fingerprints of the packages that were in the index before we started,
+	 * by package name. Only used for incremental indexing.
+	 */
+	private final Map<String, String> existingFingerprints;
+
+	/**
+	 * The names of all packages we've seen while indexing. Like the counters
+	 * below, it's safe to update from many indexing threads at once.
+	 */
+	private final Set<String> seenPackages = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger addedCount = new AtomicInteger(0);
+	private final AtomicInteger updatedCount = new AtomicInteger(0);
+	private final AtomicInteger unchangedCount = new AtomicInteger(0);
+
+	/**
+	 * Creates an indexer.
+	 * @param generations The index generations to write to.
+	 * @param fullRebuild Whether to build a brand-new index generation. If
+	 *                    false, the current generation is updated in place,
+	 *                    unless there's no current generation yet.
+	 * @param ramBufferSizeMb The amount of memory, in megabytes, to buffer
+	 *                        added documents in before flushing a segment.
+	 * @param segmentsPerTier The number of segments of roughly equal size to
+	 *                        allow before merging them. Lower values mean
+	 *                        fewer segments to search, but more merging.
+	 * @throws IOException If the index couldn't be opened.
+	 */
+	public LucenePackageIndexer(
+			IndexGenerations generations,
+			boolean fullRebuild,
+			double ramBufferSizeMb,
+			double segmentsPerTier
+	) throws IOException {
+		this.generations = generations;
+		Optional<IndexGenerations.Generation> current = generations.getCurrent();
+		this.incremental = !fullRebuild && current.isPresent();
+		this.generation = incremental ? current.get() : generations.createNext();
+		this.dir = FSDirectory.open(generation.path());
+		this.analyzer = new PackageAnalyzer();
 		IndexWriterConfig config = new IndexWriterConfig(analyzer);
-		config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-		config.setCommitOnClose(true);
+		config.setOpenMode(incremental ? IndexWriterConfig.OpenMode.APPEND : IndexWriterConfig.OpenMode.CREATE);
+		config.setCommitOnClose(false);
+		config.setRAMBufferSizeMB(ramBufferSizeMb);
+		TieredMergePolicy mergePolicy = new TieredMergePolicy();
+		mergePolicy.setSegmentsPerTier(segmentsPerTier);
+		config.setMergePolicy(mergePolicy);
 		this.indexWriter = new IndexWriter(dir, config);
+		Map<String, String> fingerprints = incremental ? readFingerprints() : Collections.emptyMap();
+		if (fingerprints == null) {
+			Log.info("Existing index has no package fingerprints, so all packages will be re-indexed.");
+			indexWriter.deleteAll();
+			fingerprints = Collections.emptyMap();
+		}
+		this.existingFingerprints = fingerprints;
+		Log.info("{} index generation {}.", incremental ? "Incrementally updating" : "Building", generation.id());
 	}
 
 	/**
@@ -39,12 +137,16 @@ public class LucenePackageIndexer implements PackageIndexer {
 	 * index's fields are defined. We define the following fields:
 	 * <ul>
 	 *     <li>name (text, stored)</li>
+	 *     <li>name_prefix and description_prefix (edge n-grams of name and description terms, see {@link PackageAnalyzer})</li>
+	 *     <li>id (string field with the exact package name, to identify its document)</li>
+	 *     <li>fingerprint (stored only, see {@link #fingerprint(PackageInfo, PackageInfo.VersionInfo, int)})</li>
 	 *     <li>url (stored only)</li>
-	 *     <li>categories (multivalued string field with value for each category).</li>
+	 *     <li>categories (multivalued string field and sorted set doc values with value for each category, for filtering and facets).</li>
 	 *     <li>latestVersionTimestamp (string field with date of latest version).</li>
-	 *     <li>description (optional text field)</li>
-	 *     <li>license (optional string field)</li>
-	 *     <li>readme (optional text field)</li>
+	 *     <li>description (optional text field, stored and indexed with offsets for highlighting)</li>
+	 *     <li>license (optional string field and sorted set doc values, for filtering and facets)</li>
+	 *     <li>readme (optional text field with the normalized readme, see {@link ReadmeNormalizer}, stored and indexed with offsets for highlighting)</li>
+	 *     <li>downloads (numeric doc values field with total downloads, used for name suggestions)</li>
 	 *     <li>
 	 *         features (feature field with the following features useful for scoring)
 	 *         <ul>
@@ -53,58 +155,184 @@ public class LucenePackageIndexer implements PackageIndexer {
 	 *         </ul>
 	 *     </li>
 	 * </ul>
+	 * When indexing incrementally, packages whose fingerprint hasn't changed
+	 * are skipped, and others replace their existing document. This method
+	 * may be called from many threads at once.
 	 * @param info The package to index.
 	 * @throws IOException If an error occurs.
 	 */
 	@Override
 	public void addToIndex(PackageInfo info) throws IOException {
 		if (info.versions().length == 0) {
-			System.out.println("Skipping package \"" + info.name() + "\" because there are no versions available.");
+			if (Log.isDebugEnabled()) Log.debug("Skipping package \"{}\" because there are no versions available.", info.name());
 			return;
 		}
-		System.out.println("Indexing package \"" + info.name() + "\".");
-		String dubUrl = "https://code.dlang.org/packages/" + info.name();
+		seenPackages.add(info.name());
 		List<PackageInfo.VersionInfo> allVersions = new ArrayList<>(Arrays.asList(info.versions()));
 		allVersions.sort(Comparator.comparing(PackageInfo.VersionInfo::timestamp).reversed());
 		var recentVersions = allVersions.subList(0, Math.min(5, allVersions.size()));
+		PackageInfo.VersionInfo latestVersion = recentVersions.getFirst();
+		int daysSinceUpdate = Math.clamp(Duration.between(latestVersion.timestamp(), info.fetchedAt()).toDays(), 1, 365 * 3);
+		String fingerprint = fingerprint(info, latestVersion, daysSinceUpdate);
+		String existingFingerprint = existingFingerprints.get(info.name());
+		if (fingerprint.equals(existingFingerprint)) {
+			unchangedCount.incrementAndGet();
+			return;
+		}
 
+		if (Log.isDebugEnabled()) Log.debug("Indexing package \"{}\".", info.name());
+		String dubUrl = "https://code.dlang.org/packages/" + info.name();
 		Document doc = new Document();
 		doc.add(new TextField("name", info.name(), Field.Store.YES));
+		doc.add(new Field(PackageAnalyzer.prefixField("name"), info.name(), PREFIX_FIELD_TYPE));
+		doc.add(new StringField("id", info.name(), Field.Store.NO));
+		doc.add(new StoredField("fingerprint", fingerprint));
 		doc.add(new StoredField("url", dubUrl));
 		for (String category : info.categories()) {
 			doc.add(new StringField("categories", category, Field.Store.NO));
+			doc.add(new SortedSetDocValuesField("categories", new BytesRef(category)));
 		}
 
-		PackageInfo.VersionInfo latestVersion = recentVersions.getFirst();
 		doc.add(new StringField(
 				"latestVersionTimestamp",
 				DateTools.dateToString(Date.from(latestVersion.timestamp().toInstant(ZoneOffset.UTC)), DateTools.Resolution.SECOND),
 				Field.Store.NO
 		));
 		if (latestVersion.description() != null) {
-			doc.add(new TextField("description", latestVersion.description(), Field.Store.NO));
+			doc.add(new Field("description", latestVersion.description(), HIGHLIGHTED_TEXT_FIELD_TYPE));
+			doc.add(new Field(PackageAnalyzer.prefixField("description"), latestVersion.description(), PREFIX_FIELD_TYPE));
 		}
 		if (latestVersion.license() != null) {
 			doc.add(new StringField("license", latestVersion.license(), Field.Store.NO));
+			doc.add(new SortedSetDocValuesField("license", new BytesRef(latestVersion.license())));
 		}
+		// The readme is too large to index prefixes for, so it's only matched on whole terms.
 		if (latestVersion.readmeText() != null) {
-			doc.add(new TextField("readme", latestVersion.readmeText(), Field.Store.NO));
+			doc.add(new Field("readme", ReadmeNormalizer.normalize(latestVersion.readmeText()), HIGHLIGHTED_TEXT_FIELD_TYPE));
 		}
 
 		// Add FeatureFields to score packages based on some metrics.
-		int daysSinceUpdate = Math.clamp(Duration.between(latestVersion.timestamp(), info.fetchedAt()).toDays(), 1, 365 * 3);
 		float recency = 1f / daysSinceUpdate;
 		float downloadsScore = Math.clamp(info.totalDownloads(), 0.001f, Float.MAX_VALUE);
 		doc.add(new FeatureField("features", "recency", recency));
 		doc.add(new FeatureField("features", "downloads", downloadsScore));
+		doc.add(new NumericDocValuesField("downloads", info.totalDownloads()));
+
+		if (existingFingerprint == null) {
+			indexWriter.addDocument(doc);
+			addedCount.incrementAndGet();
+		} else {
+			indexWriter.updateDocument(new Term("id", info.name()), doc);
+			updatedCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Commits the index. For a full rebuild, the new generation is published,
+	 * so that searchers will switch to it the next time they refresh. For an
+	 * incremental update, packages that we didn't see are deleted first.
+	 * @throws IOException If the index couldn't be committed or published.
+	 */
+	@Override
+	public void commit() throws IOException {
+		int deletedCount = 0;
+		for (String name : existingFingerprints.keySet()) {
+			if (!seenPackages.contains(name)) {
+				indexWriter.deleteDocuments(new Term("id", name));
+				deletedCount++;
+			}
+		}
+		indexWriter.setLiveCommitData(Map.of(
+				PackageIndexSearcher.GENERATION_KEY, Long.toString(generation.id()),
+				PackageIndexSearcher.TIMESTAMP_KEY, Long.toString(System.currentTimeMillis())
+		).entrySet());
+		indexWriter.commit();
+		generations.publish(generation);
+		committed = true;
+		Metrics.INDEXER_PACKAGES_ADDED.set(addedCount.get());
+		Metrics.INDEXER_PACKAGES_UPDATED.set(updatedCount.get());
+		Metrics.INDEXER_PACKAGES_DELETED.set(deletedCount);
+		Metrics.INDEXER_PACKAGES_UNCHANGED.set(unchangedCount.get());
+		Log.info(
+				"Committed index generation {}: {} added, {} updated, {} deleted, {} unchanged.",
+				generation.id(),
+				addedCount.get(),
+				updatedCount.get(),
+				deletedCount,
+				unchangedCount.get()
+		);
+	}
 
-		indexWriter.addDocument(doc);
+	/**
+	 * Computes a fingerprint for a package, made up of its latest version tag
+	 * and a hash of all the information we index about it, as well as the
+	 * {@link #SCHEMA_VERSION}. If a package's
+	 * fingerprint hasn't changed, there's no need to re-index it.
+	 * <p>
+	 * Downloads and recency change all the time, so they're only included as
+	 * a logarithmic bucket; their feature values are thus refreshed whenever
+	 * they roughly double (or halve), and exactly on every full rebuild.
+	 * </p>
+	 * @param info The package.
+	 * @param latestVersion The package's latest version.
+	 * @param daysSinceUpdate The number of days since the latest version.
+	 * @return The package's fingerprint.
+	 */
+	static String fingerprint(PackageInfo info, PackageInfo.VersionInfo latestVersion, int daysSinceUpdate) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(SCHEMA_VERSION).append('\n');
+		sb.append(info.name()).append('\n');
+		for (String category : info.categories()) {
+			sb.append(category).append('\n');
+		}
+		sb.append(latestVersion.timestamp()).append('\n');
+		sb.append(latestVersion.description()).append('\n');
+		sb.append(latestVersion.license()).append('\n');
+		sb.append(latestVersion.readmeText()).append('\n');
+		sb.append(64 - Long.numberOfLeadingZeros(info.totalDownloads())).append('\n');
+		sb.append(32 - Integer.numberOfLeadingZeros(daysSinceUpdate));
+		byte[] hash = digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+		return latestVersion.versionTag() + ":" + HexFormat.of().formatHex(hash);
+	}
+
+	/**
+	 * Reads the fingerprints of all packages in the existing index.
+	 * @return A map of package names to their fingerprint, or null if some
+	 * package in the index doesn't have a fingerprint.
+	 * @throws IOException If the index couldn't be read.
+	 */
+	private Map<String, String> readFingerprints() throws IOException {
+		Map<String, String> fingerprints = new HashMap<>();
+		try (DirectoryReader reader = DirectoryReader.open(indexWriter)) {
+			StoredFields storedFields = reader.storedFields();
+			Bits liveDocs = MultiBits.getLiveDocs(reader);
+			for (int i = 0; i < reader.maxDoc(); i++) {
+				if (liveDocs != null && !liveDocs.get(i)) continue;
+				Document doc = storedFields.document(i, Set.of("name", "fingerprint"));
+				if (doc.get("fingerprint") == null) return null;
+				fingerprints.put(doc.get("name"), doc.get("fingerprint"));
+			}
+		}
+		return fingerprints;
 	}
 
 	@Override
 	public void close() throws Exception {
-		indexWriter.close();
+		if (committed) {
+			indexWriter.close();
+		} else {
+			indexWriter.rollback();
+		}
 		analyzer.close();
 		dir.close();
+		if (!committed && !incremental) {
+			generations.delete(generation);
+		}
 	}
 }
@@ -1,25 +1,42 @@
 package com.andrewlalis.d_package_search.impl;
 
+import com.andrewlalis.d_package_search.Log;
+import com.andrewlalis.d_package_search.Metrics;
+import com.andrewlalis.d_package_search.PackageSearchRequest;
+import com.andrewlalis.d_package_search.PackageSearchResponse;
 import com.andrewlalis.d_package_search.PackageSearchResult;
 import com.andrewlalis.d_package_search.PackageSearcher;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.document.FeatureField;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
- * A package searcher implementation that uses a weighted wildcard query to
- * search a Lucene index.
+ * A package searcher implementation that uses a weighted prefix query to
+ * search a Lucene index. The index is opened once and shared by all queries
+ * through a {@link GenerationSearcherManager}, which hands out
+ * reference-counted searchers and swaps in a new one whenever
+ * {@link #refresh()} is called after a new index generation was published.
+ * Results are paged using cursors, so that deeper pages are collected with
+ * {@link IndexSearcher#searchAfter(ScoreDoc, Query, int)} instead of
+ * collecting all the hits on the pages before them.
  */
-public class LucenePackageSearcher implements PackageSearcher {
+public class LucenePackageSearcher implements PackageSearcher, AutoCloseable {
     /**
      * Factor by which we prefer results containing the entire search phrase
      * instead of just a part of it.
@@ -37,64 +54,658 @@ public class LucenePackageSearcher implements PackageSearcher {
     );
 
     /**
-     * The maximum number of results to show.
+     * The fields whose terms can be matched by a prefix of the search term,
+     * using the prefix subfield that's indexed for them. Other fields only
+     * match whole terms, since expanding a short prefix over large free-text
+     * fields like the readme would be far too slow.
      */
-    private static final int MAX_RESULTS = 10;
+    private static final Set<String> PREFIX_FIELDS = Set.of("name", "description");
 
-    private final Path indexPath;
+    /**
+     * The fields that search results show highlighted snippets of.
+     */
+    private static final List<String> HIGHLIGHTED_FIELDS = List.of("description", "readme");
+
+    /**
+     * The maximum number of a query's terms that are searched for
+     * individually.
+     */
+    private static final int MAX_SEARCH_TERMS = 5;
+
+    /**
+     * The maximum number of indexed terms that each search term is expanded
+     * to when falling back to fuzzy matching.
+     */
+    private static final int FUZZY_MAX_EXPANSIONS = 16;
+
+    /**
+     * The fields that search results can be filtered on, and whose values
+     * can be counted among all matching packages.
+     */
+    private static final List<String> FACET_FIELDS = List.of("categories", "license");
+
+    /**
+     * The number of hits up to which the total hit count is computed exactly,
+     * when counting facets. This is the same as Lucene's default.
+     */
+    private static final int TOTAL_HITS_THRESHOLD = 1000;
+
+    /**
+     * The maximum number of results to show on a single page, regardless of
+     * the limit that's requested, to protect search latency.
+     */
+    private static final int MAX_RESULTS = 1000;
+
+    /**
+     * The maximum number of queries to warm up a new searcher with, so that
+     * warming up doesn't delay a new index for too long.
+     */
+    private static final int MAX_WARMUP_QUERIES = 1000;
+
+    private final IndexGenerations generations;
+
+    /**
+     * A file with queries to run against each new searcher before it's used,
+     * one per line, or null to not warm searchers up with any queries.
+     */
+    private final Path warmupQueriesFile;
+    private final boolean preload;
+    private final IndexStorage storage;
+    private final long maxMemoryBytes;
+
+    /**
+     * The number of candidates that a search's first pass collects, to be
+     * rescored by its full query, or 0 to only search with the full query.
+     */
+    private final int rescoreWindow;
+
+    /**
+     * The maximum time that collecting a search's results may take, after
+     * which it stops and returns what it's found so far.
+     */
+    private final Duration searchTimeout;
+
+    /**
+     * The executor that all searchers use to search index segments
+     * concurrently. It lives as long as this package searcher does.
+     */
+    private final ExecutorService executor;
+    private final SearcherFactory searcherFactory;
+
+    /**
+     * The manager for the shared searcher. It's lazily initialized, since the
+     * index may not exist yet when the application starts.
+     */
+    private volatile GenerationSearcherManager searcherManager;
+
+    /**
+     * Creates a package searcher.
+     * @param generations The index generations to search.
+     * @param searchTimeout The maximum time that collecting a search's results
+     *                      may take.
+     * @param warmupQueriesFile A file with queries to run against each new
+     *                          searcher before it's used, one per line, or
+     *                          null to not warm searchers up with queries.
+     * @param preload Whether to load the index files into memory when they're
+     *                opened.
+     * @param storage Where to read the index from.
+     * @param maxMemoryBytes The largest index that will be copied into memory
+     *                       if storage is in memory. Larger indexes are read
+     *                       from disk.
+     * @param rescoreWindow The number of candidates that a search's first
+     *                      pass collects for rescoring, or 0 to disable
+     *                      two-phase searches.
+     */
+    public LucenePackageSearcher(
+            IndexGenerations generations,
+            Duration searchTimeout,
+            Path warmupQueriesFile,
+            boolean preload,
+            IndexStorage storage,
+            long maxMemoryBytes,
+            int rescoreWindow
+    ) {
+        this.generations = generations;
+        this.searchTimeout = searchTimeout;
+        this.warmupQueriesFile = warmupQueriesFile;
+        this.preload = preload;
+        this.storage = storage;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.rescoreWindow = rescoreWindow;
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.searcherFactory = new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
+                PackageIndexSearcher searcher = new PackageIndexSearcher(reader, executor);
+                warmUp(searcher);
+                return searcher;
+            }
+        };
+    }
+
+    @Override
+    public PackageSearchResponse search(PackageSearchRequest request) {
+        try {
+            GenerationSearcherManager manager = getSearcherManager();
+            if (manager == null) return PackageSearchResponse.empty("none");
+            PackageIndexSearcher searcher = (PackageIndexSearcher) manager.acquire();
+            try {
+                if (request.query() == null || request.query().isBlank()) {
+                    return PackageSearchResponse.empty(searcher.getVersion());
+                }
+                return search(searcher, request);
+            } finally {
+                manager.release(searcher);
+            }
+        } catch (IOException e) {
+            Log.error("An IOException occurred while reading index: {}", e.getMessage());
+            return PackageSearchResponse.empty("none");
+        }
+    }
+
+    @Override
+    public List<CompletableFuture<PackageSearchResponse>> searchBatch(List<PackageSearchRequest> requests, Executor executor) {
+        GenerationSearcherManager manager;
+        PackageIndexSearcher searcher;
+        try {
+            manager = getSearcherManager();
+            if (manager == null) {
+                return requests.stream().map(r -> CompletableFuture.completedFuture(PackageSearchResponse.empty("none"))).toList();
+            }
+            searcher = (PackageIndexSearcher) manager.acquire();
+        } catch (IOException e) {
+            Log.error("An IOException occurred while reading index: {}", e.getMessage());
+            return requests.stream().map(r -> CompletableFuture.completedFuture(PackageSearchResponse.empty("none"))).toList();
+        }
+        // Every search in the batch uses the same searcher, which is only released once they're all done.
+        List<CompletableFuture<PackageSearchResponse>> futures = new ArrayList<>(requests.size());
+        for (PackageSearchRequest request : requests) {
+            try {
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    if (request.query() == null || request.query().isBlank()) return PackageSearchResponse.empty(searcher.getVersion());
+                    try {
+                        return search(searcher, request);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, executor));
+            } catch (RejectedExecutionException e) {
+                futures.add(CompletableFuture.failedFuture(e));
+            }
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).whenComplete((v, e) -> {
+            try {
+                manager.release(searcher);
+            } catch (IOException ex) {
+                Log.error("Failed to release searcher: {}", ex.getMessage());
+            }
+        });
+        return futures;
+    }
+
+    private PackageSearchResponse search(PackageIndexSearcher searcher, PackageSearchRequest request) throws IOException {
+        int limit = Math.clamp(request.limit(), 1, MAX_RESULTS);
+        long start = System.nanoTime();
+        SearchQuery searchQuery = buildQuery(request.query(), request.filters());
+        Metrics.SEARCH_QUERY_BUILD.recordSince(start);
+        /*
+        Results are found in two passes: a cheap query picks the top
+        candidates, and only those are scored by the full query. Later pages
+        keep the order of the first one, even if they ask for a different
+        limit, so they neither skip nor repeat any packages.
+         */
+        ScoreDoc after = null;
+        boolean rescore = rescoreWindow > 0 && limit <= rescoreWindow;
+        if (request.cursor() != null) {
+            SearchCursor cursor = SearchCursor.decode(request.cursor(), searcher.getVersion());
+            after = cursor.lastHit();
+            rescore = rescoreWindow > 0 && cursor.rescored();
+        }
+        Query luceneQuery = rescore ? searchQuery.firstPass() : searchQuery.full();
+        start = System.nanoTime();
+        long deadline = start + searchTimeout.toNanos();
+        TopDocs topDocs;
+        Map<String, Map<String, Integer>> facets = null;
+        CollectorManager<?, TopDocs> topDocsManager = TopScoreDocCollector.createSharedManager(
+                rescore ? rescoreWindow : limit,
+                rescore ? null : after,
+                TOTAL_HITS_THRESHOLD
+        );
+        boolean timedOut;
+        if (request.facets()) {
+            // Collect the top hits and the facet counts in a single pass over the matching packages.
+            var manager = new DeadlineCollectorManager<>(
+                    new MultiCollectorManager(topDocsManager, new FacetCountsCollectorManager(FACET_FIELDS)),
+                    deadline
+            );
+            Object[] collected = searcher.search(luceneQuery, manager);
+            topDocs = (TopDocs) collected[0];
+            @SuppressWarnings("unchecked")
+            Map<String, Map<String, Integer>> facetCounts = (Map<String, Map<String, Integer>>) collected[1];
+            facets = facetCounts;
+            timedOut = manager.isTimedOut();
+        } else {
+            var manager = new DeadlineCollectorManager<>(topDocsManager, deadline);
+            topDocs = searcher.search(luceneQuery, manager);
+            timedOut = manager.isTimedOut();
+        }
+        if (timedOut) {
+            Metrics.SEARCHES_TIMED_OUT.increment();
+            Log.warn("Search for \"{}\" timed out after {} ms, so its results are partial.", request.query(), searchTimeout.toMillis());
+        }
+        Metrics.SEARCH_EXECUTE.recordSince(start);
+        if (rescore) {
+            start = System.nanoTime();
+            RescoredPage page = searchRescored(searcher, searchQuery.full(), topDocs, after, limit, deadline);
+            topDocs = new TopDocs(topDocs.totalHits, page.hits());
+            timedOut |= page.timedOut();
+            Metrics.SEARCH_RESCORE.recordSince(start);
+        }
+        List<String> searchTerms = searchTerms(request.query());
+        Query explainedQuery = searchQuery.full();
+        boolean fuzzy = false;
+        String didYouMean = null;
+        // A query that matches nothing is most likely a misspelled package name.
+        if (topDocs.totalHits.value == 0 && after == null && !timedOut) {
+            start = System.nanoTime();
+            didYouMean = searcher.getSpellingDictionary().suggest(searchTerms);
+            if (didYouMean != null) Metrics.SEARCH_DID_YOU_MEAN.increment();
+            Query fuzzyQuery = buildFuzzyQuery(searchTerms, request.filters());
+            if (fuzzyQuery != null) {
+                var manager = new DeadlineCollectorManager<>(
+                        TopScoreDocCollector.createSharedManager(limit, null, TOTAL_HITS_THRESHOLD),
+                        deadline
+                );
+                topDocs = searcher.search(fuzzyQuery, manager);
+                timedOut = manager.isTimedOut();
+                explainedQuery = fuzzyQuery;
+                fuzzy = topDocs.scoreDocs.length > 0;
+                (fuzzy ? Metrics.SEARCH_FALLBACKS_FOUND : Metrics.SEARCH_FALLBACKS_EMPTY).increment();
+            }
+            Metrics.SEARCH_FUZZY_FALLBACK.recordSince(start);
+        }
+        start = System.nanoTime();
+        List<PackageSearchResult> results = new ArrayList<>(topDocs.scoreDocs.length);
+        long highlightNanos = 0;
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            PackageSearchResult result = searcher.getResult(scoreDoc.doc);
+            long highlightStart = System.nanoTime();
+            // Fuzzy matches are only in names, which aren't highlighted.
+            Map<String, String> highlights = fuzzy ? null : highlight(searcher, scoreDoc.doc, searchTerms);
+            highlightNanos += System.nanoTime() - highlightStart;
+            if (request.explain()) {
+                String explanation = "Search result scoring explanation:\n" +
+                        searcher.explain(explainedQuery, scoreDoc.doc).toString();
+                result = new PackageSearchResult(result.name(), result.url(), explanation, highlights, null);
+            } else if (highlights != null) {
+                result = new PackageSearchResult(result.name(), result.url(), null, highlights, result.json());
+            }
+            results.add(result);
+        }
+        Metrics.SEARCH_HIGHLIGHT.record(highlightNanos);
+        Metrics.SEARCH_LOAD_RESULTS.record(System.nanoTime() - start - highlightNanos);
+        String nextCursor = null;
+        /*
+        A partial page can't be continued, since it may have skipped better
+        results. Neither can fuzzy matches, since the next page would search
+        for the query itself again.
+         */
+        if (topDocs.scoreDocs.length == limit && !timedOut && !fuzzy) {
+            ScoreDoc lastHit = topDocs.scoreDocs[limit - 1];
+            nextCursor = new SearchCursor(searcher.getVersion(), rescore, lastHit.doc, lastHit.score).encode();
+        }
+        return new PackageSearchResponse(results, nextCursor, facets, timedOut, fuzzy, didYouMean, searcher.getVersion());
+    }
+
+    /**
+     * A page of hits from a two-phase search.
+     * @param hits The hits.
+     * @param timedOut Whether searching past the candidates ran out of time.
+     */
+    private record RescoredPage(ScoreDoc[] hits, boolean timedOut) {}
+
+    /**
+     * Gets a page of hits in the order of a two-phase search: first the
+     * candidates from the first pass, by their full score, and then every
+     * other match, by its full score. Each page finds the same candidates
+     * again, so it continues exactly where the previous page ended. Pages
+     * past the candidates are rare, so they search with the full query, and
+     * skip the candidates.
+     * @param searcher The searcher.
+     * @param fullQuery The full query.
+     * @param candidates The first pass's top hits.
+     * @param after The last hit on the previous page, or null for the first
+     *              page.
+     * @param limit The number of hits on a page.
+     * @param deadline The deadline for searching past the candidates, as a
+     *                 {@link System#nanoTime()} value.
+     * @return The page of hits.
+     * @throws IOException If the index couldn't be read.
+     */
+    private RescoredPage searchRescored(
+            IndexSearcher searcher,
+            Query fullQuery,
+            TopDocs candidates,
+            ScoreDoc after,
+            int limit,
+            long deadline
+    ) throws IOException {
+        ScoreDoc[] rescored = rescore(searcher, fullQuery, candidates, candidates.scoreDocs.length).scoreDocs;
+        int from = 0;
+        boolean afterCandidates = after != null;
+        if (after != null) {
+            for (int i = 0; i < rescored.length; i++) {
+                if (rescored[i].doc == after.doc) {
+                    from = i + 1;
+                    afterCandidates = false;
+                    break;
+                }
+            }
+            if (afterCandidates) from = rescored.length;
+        }
+        List<ScoreDoc> hits = new ArrayList<>(limit);
+        for (int i = from; i < rescored.length && hits.size() < limit; i++) {
+            hits.add(rescored[i]);
+        }
+        // Other packages can only match if the first pass collected a full window of candidates.
+        if (hits.size() == limit || rescored.length < rescoreWindow) {
+            return new RescoredPage(hits.toArray(ScoreDoc[]::new), false);
+        }
+        Set<Integer> candidateDocs = new HashSet<>(rescored.length);
+        for (ScoreDoc candidate : rescored) candidateDocs.add(candidate.doc);
+        var manager = new DeadlineCollectorManager<>(
+                TopScoreDocCollector.createSharedManager(
+                        limit - hits.size() + rescored.length,
+                        afterCandidates ? after : null,
+                        TOTAL_HITS_THRESHOLD
+                ),
+                deadline
+        );
+        for (ScoreDoc hit : searcher.search(fullQuery, manager).scoreDocs) {
+            if (hits.size() == limit) break;
+            if (!candidateDocs.contains(hit.doc)) hits.add(hit);
+        }
+        return new RescoredPage(hits.toArray(ScoreDoc[]::new), manager.isTimedOut());
+    }
 
-    public LucenePackageSearcher(Path indexPath) {
-        this.indexPath = indexPath;
+    /**
+     * Rescores the candidates found by a search's first pass with its full
+     * query. Every candidate matches the full query, so its new score is the
+     * same as if the full query had been used to search for it.
+     * @param searcher The searcher.
+     * @param fullQuery The full query.
+     * @param candidates The first pass's top hits.
+     * @param limit The number of hits to keep.
+     * @return The top hits by their full score, ordered by score and then by
+     * document id, like any other search's hits.
+     * @throws IOException If the index couldn't be read.
+     */
+    private static TopDocs rescore(IndexSearcher searcher, Query fullQuery, TopDocs candidates, int limit) throws IOException {
+        return new QueryRescorer(fullQuery) {
+            @Override
+            protected float combine(float firstPassScore, boolean secondPassMatches, float secondPassScore) {
+                return secondPassMatches ? secondPassScore : firstPassScore;
+            }
+        }.rescore(searcher, candidates, limit);
+    }
+
+    @Override
+    public List<String> suggest(String prefix, int limit) {
+        try {
+            GenerationSearcherManager manager = getSearcherManager();
+            if (manager == null) return Collections.emptyList();
+            PackageIndexSearcher searcher = (PackageIndexSearcher) manager.acquire();
+            try {
+                return searcher.getSuggester().suggest(prefix, limit);
+            } finally {
+                manager.release(searcher);
+            }
+        } catch (IOException e) {
+            Log.error("An IOException occurred while suggesting package names: {}", e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public String getIndexVersion() {
+        GenerationSearcherManager manager = searcherManager;
+        if (manager == null) return "none";
+        try {
+            PackageIndexSearcher searcher = (PackageIndexSearcher) manager.acquire();
+            try {
+                return searcher.getVersion();
+            } finally {
+                manager.release(searcher);
+            }
+        } catch (IOException e) {
+            Log.error("An IOException occurred while getting the index version: {}", e.getMessage());
+            return "none";
+        }
+    }
+
+    @Override
+    public IndexStats getIndexStats() {
+        GenerationSearcherManager manager = searcherManager;
+        if (manager == null) return null;
+        try {
+            PackageIndexSearcher searcher = (PackageIndexSearcher) manager.acquire();
+            try {
+                DirectoryReader reader = (DirectoryReader) searcher.getIndexReader();
+                IndexCommit commit = reader.getIndexCommit();
+                long sizeBytes = 0;
+                for (String file : commit.getFileNames()) {
+                    sizeBytes += reader.directory().fileLength(file);
+                }
+                long committedAt = Long.parseLong(commit.getUserData().getOrDefault(PackageIndexSearcher.TIMESTAMP_KEY, "0"));
+                return new IndexStats(
+                        sizeBytes,
+                        reader.leaves().size(),
+                        reader.numDocs(),
+                        Long.parseLong(commit.getUserData().getOrDefault(PackageIndexSearcher.GENERATION_KEY, "0")),
+                        committedAt == 0 ? 0 : (System.currentTimeMillis() - committedAt) / 1000
+                );
+            } finally {
+                manager.release(searcher);
+            }
+        } catch (IOException e) {
+            Log.error("An IOException occurred while getting index statistics: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Refreshes the shared searcher so that subsequent searches see the most
+     * recently published generation of the index. Searches that are in progress
+     * keep using the searcher they acquired until they're done with it.
+     */
+    public void refresh() {
+        try {
+            GenerationSearcherManager manager = getSearcherManager();
+            if (manager != null) {
+                manager.maybeRefresh();
+            }
+        } catch (IOException e) {
+            Log.error("Failed to refresh index searcher: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Checks whether there's a searcher that's been opened and warmed up, so
+     * searches will be served at full speed.
+     * @return True if the searcher is ready.
+     */
+    @Override
+    public boolean isReady() {
+        return searcherManager != null;
     }
 
     @Override
-    public SequencedCollection<PackageSearchResult> search(String query) {
-        if (query == null || query.isBlank() || Files.notExists(indexPath)) return Collections.emptyList();
-        Query luceneQuery = buildQuery(query);
-
-        try (DirectoryReader dirReader = DirectoryReader.open(FSDirectory.open(indexPath))) {
-            IndexSearcher searcher = new IndexSearcher(dirReader, Executors.newVirtualThreadPerTaskExecutor());
-            TopDocs topDocs = searcher.search(luceneQuery, MAX_RESULTS, Sort.RELEVANCE, false);
-            List<PackageSearchResult> results = new ArrayList<>(MAX_RESULTS);
-            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-                Document doc = searcher.storedFields().document(scoreDoc.doc);
-                results.add(prepareResult(
-                        doc,
-                        "Search result scoring explanation:\n" +
-                        searcher.explain(luceneQuery, scoreDoc.doc).toString()
+    public synchronized void close() throws IOException {
+        if (searcherManager != null) {
+            searcherManager.close();
+            searcherManager = null;
+        }
+        executor.close();
+    }
+
+    /**
+     * Builds highlighted snippets of the fields of a result that the query's
+     * terms matched.
+     * @param searcher The searcher.
+     * @param doc The result's document id.
+     * @param terms The query's search terms.
+     * @return The snippets by field name, or null if none of the highlighted
+     * fields matched.
+     * @throws IOException If the index couldn't be read.
+     */
+    private static Map<String, String> highlight(PackageIndexSearcher searcher, int doc, List<String> terms) throws IOException {
+        Map<String, String> highlights = null;
+        for (String field : HIGHLIGHTED_FIELDS) {
+            String snippet = SnippetHighlighter.highlight(searcher.getIndexReader(), doc, field, terms, PREFIX_FIELDS.contains(field));
+            if (snippet != null) {
+                if (highlights == null) highlights = new LinkedHashMap<>();
+                highlights.put(field, snippet);
+            }
+        }
+        return highlights;
+    }
+
+    /**
+     * Splits a query into the terms that are searched for.
+     * @param queryText The query.
+     * @return At most the first {@link #MAX_SEARCH_TERMS} terms.
+     */
+    private static List<String> searchTerms(String queryText) {
+        String[] terms = queryText.toLowerCase().split("\\s+");
+        return Arrays.asList(terms).subList(0, Math.min(MAX_SEARCH_TERMS, terms.length));
+    }
+
+    /**
+     * Warms up a new searcher before it's made visible to searches, by running
+     * each of the queries in the warm-up queries file, so that the index
+     * files they touch are paged in and Lucene's caches are populated.
+     * @param searcher The new searcher.
+     */
+    private void warmUp(PackageIndexSearcher searcher) {
+        long start = System.nanoTime();
+        List<String> queries = readWarmupQueries();
+        int failures = 0;
+        for (String query : queries) {
+            try {
+                // Collect facets too, so that their doc values are paged in.
+                Object[] collected = searcher.search(buildQuery(query, Map.of()).full(), new MultiCollectorManager(
+                        TopScoreDocCollector.createSharedManager(PackageSearchRequest.DEFAULT_LIMIT, null, TOTAL_HITS_THRESHOLD),
+                        new FacetCountsCollectorManager(FACET_FIELDS)
                 ));
+                for (ScoreDoc scoreDoc : ((TopDocs) collected[0]).scoreDocs) {
+                    searcher.getResult(scoreDoc.doc);
+                }
+            } catch (IOException | RuntimeException e) {
+                failures++;
             }
-            return results;
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        Metrics.SEARCHER_WARMUP.set(Metrics.toSeconds(elapsedNanos));
+        Log.info(
+                "Warmed up searcher for index version {} with {} queries ({} failed) in {} ms.",
+                searcher.getVersion(),
+                queries.size(),
+                failures,
+                elapsedNanos / 1_000_000
+        );
+    }
+
+    private List<String> readWarmupQueries() {
+        if (warmupQueriesFile == null || Files.notExists(warmupQueriesFile)) return Collections.emptyList();
+        try (var lines = Files.lines(warmupQueriesFile)) {
+            return lines
+                    .map(line -> line.trim().toLowerCase().replaceAll("\\s+", " "))
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .limit(MAX_WARMUP_QUERIES)
+                    .toList();
         } catch (IOException e) {
-            System.err.println("An IOException occurred while reading index: " + e.getMessage());
+            Log.warn("Failed to read warm-up queries from {}: {}", warmupQueriesFile, e.getMessage());
             return Collections.emptyList();
         }
     }
 
     /**
-     * Builds the Lucene search query for a given textual query string.
+     * Gets the searcher manager, opening it if the index exists and it hasn't
+     * been opened yet.
+     * @return The searcher manager, or null if there's no index to search yet.
+     * @throws IOException If the index couldn't be opened.
+     */
+    private GenerationSearcherManager getSearcherManager() throws IOException {
+        GenerationSearcherManager manager = searcherManager;
+        if (manager != null) return manager;
+        synchronized (this) {
+            if (searcherManager == null) {
+                Optional<IndexGenerations.Generation> generation = generations.getCurrent();
+                if (generation.isPresent()) {
+                    searcherManager = new GenerationSearcherManager(
+                            generations,
+                            generation.get(),
+                            searcherFactory,
+                            preload,
+                            storage,
+                            maxMemoryBytes
+                    );
+                }
+            }
+            return searcherManager;
+        }
+    }
+
+    /**
+     * Builds a query that matches terms in a field that start with the given
+     * prefix. Prefixes up to {@link PackageAnalyzer#MAX_PREFIX_LENGTH} are
+     * indexed, so they're matched with a single term lookup in the field's
+     * prefix subfield. Longer prefixes fall back to a prefix query, which
+     * only expands to a few terms. Either way, matches get a constant score,
+     * just like a prefix query's do.
+     * @param fieldName The field to match.
+     * @param prefix The prefix.
+     * @return The query.
+     */
+    private static Query buildPrefixQuery(String fieldName, String prefix) {
+        if (prefix.codePointCount(0, prefix.length()) <= PackageAnalyzer.MAX_PREFIX_LENGTH) {
+            return new ConstantScoreQuery(new TermQuery(new Term(PackageAnalyzer.prefixField(fieldName), prefix)));
+        }
+        return new PrefixQuery(new Term(fieldName, prefix));
+    }
+
+    /**
+     * Builds the Lucene search queries for a given textual query string.
      * @param queryText The query text to use.
-     * @return The query to use.
+     * @param filters The values to filter faceted fields by.
+     * @return The queries to use.
+     * @throws IllegalArgumentException If a filter is for a field that isn't
+     * faceted.
      */
-    private Query buildQuery(String queryText) {
-        BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
+    private SearchQuery buildQuery(String queryText, Map<String, Set<String>> filters) {
+        BooleanQuery.Builder termsQueryBuilder = new BooleanQuery.Builder();
         String[] searchTerms = queryText.toLowerCase().split("\\s+");
 
-        // Only consider the first 5 search terms, and add a prefix query for each term for them.
-        for (int i = 0; i < Math.min(5, searchTerms.length); i++) {
+        // Only consider the first few search terms, and add a prefix or term query for each term for them.
+        List<BooleanClause> termClauses = new ArrayList<>();
+        for (int i = 0; i < Math.min(MAX_SEARCH_TERMS, searchTerms.length); i++) {
             for (var entry : WEIGHTED_FIELDS.entrySet()) {
                 String fieldName = entry.getKey();
                 float fieldWeight = entry.getValue();
-                Query termQuery = new BoostQuery(new PrefixQuery(new Term(fieldName, searchTerms[i])), fieldWeight);
-                queryBuilder.add(termQuery, BooleanClause.Occur.SHOULD);
+                Query termQuery = PREFIX_FIELDS.contains(fieldName)
+                        ? buildPrefixQuery(fieldName, searchTerms[i])
+                        : new ConstantScoreQuery(new TermQuery(new Term(fieldName, searchTerms[i])));
+                termClauses.add(new BooleanClause(new BoostQuery(termQuery, fieldWeight), BooleanClause.Occur.SHOULD));
             }
         }
+        termClauses.forEach(termsQueryBuilder::add);
 
         /*
         If there's more than one word in the search query, put an extra emphasis
         on finding a match with the entire query together. We use the PhraseQuery
         builder to build an ordered phrase query for each of the weighted fields.
          */
+        List<BooleanClause> phraseClauses = new ArrayList<>();
         if (searchTerms.length > 1) {
             for (var entry : WEIGHTED_FIELDS.entrySet()) {
                 String fieldName = entry.getKey();
@@ -103,24 +714,106 @@ public class LucenePackageSearcher implements PackageSearcher {
                 for (int i = 0; i < searchTerms.length; i++) {
                     phraseQueryBuilder.add(new Term(fieldName, searchTerms[i]), i);
                 }
-                queryBuilder.add(new BoostQuery(phraseQueryBuilder.build(), fieldWeight * PHRASE_WEIGHT_MODIFIER), BooleanClause.Occur.SHOULD);
+                phraseClauses.add(new BooleanClause(new BoostQuery(phraseQueryBuilder.build(), fieldWeight * PHRASE_WEIGHT_MODIFIER), BooleanClause.Occur.SHOULD));
             }
         }
 
-        Query baseQuery = queryBuilder.build();
-        System.out.println("Query: " + baseQuery.toString());
-        return new BooleanQuery.Builder()
+        BooleanQuery.Builder baseQueryBuilder = new BooleanQuery.Builder();
+        termClauses.forEach(baseQueryBuilder::add);
+        phraseClauses.forEach(baseQueryBuilder::add);
+        Query baseQuery = baseQueryBuilder.build();
+        // Queries are immutable, so it's safe to format this one later, on the log writer thread.
+        if (Log.isDebugEnabled()) Log.debug("Query: {}", baseQuery);
+        Query downloadsQuery = FeatureField.newSaturationQuery("features", "downloads", 0.5f, 500f);
+        BooleanQuery.Builder finalQueryBuilder = new BooleanQuery.Builder()
                 .add(baseQuery, BooleanClause.Occur.MUST)
                 .add(FeatureField.newSaturationQuery("features", "recency", 0.25f, 1f/30f), BooleanClause.Occur.SHOULD)
-                .add(FeatureField.newSaturationQuery("features", "downloads", 0.5f, 500f), BooleanClause.Occur.SHOULD)
-                .build();
+                .add(downloadsQuery, BooleanClause.Occur.SHOULD);
+        /*
+        The first pass only scores the term matches and downloads. A phrase
+        can only match where each of its terms does, so it matches exactly
+        the same packages as the full query.
+         */
+        BooleanQuery.Builder firstPassQueryBuilder = new BooleanQuery.Builder()
+                .add(termsQueryBuilder.build(), BooleanClause.Occur.MUST)
+                .add(downloadsQuery, BooleanClause.Occur.SHOULD);
+
+        /*
+        Filters are added as FILTER clauses, which don't affect scoring, and
+        which the searcher's query cache can cache across queries, so that a
+        filter narrows down the documents that the rest of the query has to
+        score instead of adding more work.
+         */
+        for (Query filter : buildFilters(filters)) {
+            finalQueryBuilder.add(filter, BooleanClause.Occur.FILTER);
+            firstPassQueryBuilder.add(filter, BooleanClause.Occur.FILTER);
+        }
+        return new SearchQuery(finalQueryBuilder.build(), firstPassQueryBuilder.build());
     }
 
-    private PackageSearchResult prepareResult(Document doc, String explanation) {
-        return new PackageSearchResult(
-                doc.get("name"),
-                doc.get("url"),
-                explanation
-        );
+    /**
+     * Builds a query for each faceted field that a search is filtered by.
+     * @param filters The values to filter faceted fields by.
+     * @return The filter queries.
+     * @throws IllegalArgumentException If a filter is for a field that isn't
+     * faceted.
+     */
+    private static List<Query> buildFilters(Map<String, Set<String>> filters) {
+        List<Query> queries = new ArrayList<>(filters.size());
+        for (var entry : filters.entrySet()) {
+            if (!FACET_FIELDS.contains(entry.getKey())) {
+                throw new IllegalArgumentException("Cannot filter on \"" + entry.getKey() + "\".");
+            }
+            if (entry.getValue().isEmpty()) continue;
+            List<BytesRef> values = entry.getValue().stream().map(BytesRef::new).toList();
+            queries.add(new TermInSetQuery(entry.getKey(), values));
+        }
+        return queries;
+    }
+
+    /**
+     * Builds a query that matches packages whose names have terms that are
+     * within a few edits of the search terms, for when a search matches
+     * nothing. Each search term only matches terms with the same first
+     * letter, like the spelling dictionary's corrections, and is expanded to at most {@link #FUZZY_MAX_EXPANSIONS} of
+     * the closest ones, so the query's cost is bounded no matter how many
+     * names are in the index.
+     * @param searchTerms The search terms.
+     * @param filters The values to filter faceted fields by.
+     * @return The query, or null if none of the terms are long enough to
+     * match fuzzily.
+     */
+    private static Query buildFuzzyQuery(List<String> searchTerms, Map<String, Set<String>> filters) {
+        BooleanQuery.Builder fuzzyQueryBuilder = new BooleanQuery.Builder();
+        boolean empty = true;
+        for (String term : searchTerms) {
+            if (term.length() < SpellingDictionary.MIN_WORD_LENGTH) continue;
+            fuzzyQueryBuilder.add(new FuzzyQuery(
+                    new Term("name", term),
+                    SpellingDictionary.maxEdits(term.length()),
+                    SpellingDictionary.PREFIX_LENGTH,
+                    FUZZY_MAX_EXPANSIONS,
+                    true
+            ), BooleanClause.Occur.SHOULD);
+            empty = false;
+        }
+        if (empty) return null;
+        BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder()
+                .add(fuzzyQueryBuilder.build(), BooleanClause.Occur.MUST)
+                .add(FeatureField.newSaturationQuery("features", "downloads", 0.5f, 500f), BooleanClause.Occur.SHOULD);
+        for (Query filter : buildFilters(filters)) {
+            queryBuilder.add(filter, BooleanClause.Occur.FILTER);
+        }
+        return queryBuilder.build();
     }
+
+    /**
+     * The queries for a search.
+     * @param full The query that ranks results. Its score includes phrase
+     *             matches and recency.
+     * @param firstPass A cheaper query that matches the same packages, but
+     *                  only scores term matches and downloads, to pick the
+     *                  candidates that the full query rescores.
+     */
+    private record SearchQuery(Query full, Query firstPass) {}
 }
@@ -0,0 +1,66 @@
+package com.andrewlalis.d_package_search.impl;
+
+import com.andrewlalis.d_package_search.ReplicationSource;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Serves snapshots of the latest commit of the current index generation, so
+ * that search nodes can replicate it. Lucene never changes a file once it's
+ * written, so a file's name, length and checksum identify its contents, and
+ * replicas only need to copy the files they don't already have.
+ */
+public class LuceneReplicationSource implements ReplicationSource {
+    private final IndexGenerations generations;
+
+    public LuceneReplicationSource(IndexGenerations generations) {
+        this.generations = generations;
+    }
+
+    @Override
+    public Snapshot getSnapshot() throws IOException {
+        Optional<IndexGenerations.Generation> generation = generations.getCurrent();
+        if (generation.isEmpty()) return null;
+        try (Directory dir = FSDirectory.open(generation.get().path())) {
+            SegmentInfos commit = SegmentInfos.readLatestCommit(dir);
+            List<SnapshotFile> files = new ArrayList<>();
+            for (String name : commit.files(true)) {
+                try (IndexInput in = dir.openInput(name, IOContext.READONCE)) {
+                    // This only reads the checksum from the file's footer.
+                    files.add(new SnapshotFile(name, in.length(), CodecUtil.retrieveChecksum(in)));
+                }
+            }
+            return new Snapshot(generation.get().id(), commit.getSegmentsFileName(), files);
+        } catch (IndexNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public InputStream openFile(long generation, String name) throws IOException {
+        // Only serve files in the latest commit, so nothing else in the index directory can be read.
+        Optional<IndexGenerations.Generation> current = generations.getCurrent();
+        if (current.isEmpty() || current.get().id() != generation) throw new NoSuchFileException(name);
+        try (Directory dir = FSDirectory.open(current.get().path())) {
+            if (!SegmentInfos.readLatestCommit(dir).files(true).contains(name)) {
+                throw new NoSuchFileException(name);
+            }
+        } catch (IndexNotFoundException e) {
+            throw new NoSuchFileException(name);
+        }
+        return Files.newInputStream(current.get().path().resolve(name));
+    }
+}
@@ -0,0 +1,103 @@
+package com.andrewlalis.d_package_search.impl;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+
+import java.io.IOException;
+
+/**
+ * The analyzer that's used for indexing packages. Most fields are analyzed
+ * just like Lucene's {@link org.apache.lucene.analysis.standard.StandardAnalyzer}
+ * does, but each field with a prefix subfield (see {@link #prefixField(String)})
+ * additionally gets every leading "edge n-gram" of each of its terms indexed,
+ * so that prefix matching at search time is a single term lookup, instead of
+ * a {@link org.apache.lucene.search.PrefixQuery} that has to be expanded into
+ * every term in the index that starts with the prefix.
+ */
+final class PackageAnalyzer extends Analyzer {
+    /**
+     * The longest prefix that's indexed. Prefixes longer than this have to be
+     * matched with a prefix query, but they only expand to a few terms.
+     */
+    static final int MAX_PREFIX_LENGTH = 15;
+
+    private static final String PREFIX_FIELD_SUFFIX = "_prefix";
+
+    PackageAnalyzer() {
+        super(PER_FIELD_REUSE_STRATEGY);
+    }
+
+    /**
+     * Gets the name of the subfield that holds the indexed prefixes of a
+     * field's terms.
+     * @param field The field name.
+     * @return The prefix subfield's name.
+     */
+    static String prefixField(String field) {
+        return field + PREFIX_FIELD_SUFFIX;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName) {
+        Tokenizer tokenizer = new StandardTokenizer();
+        TokenStream stream = new LowerCaseFilter(tokenizer);
+        if (fieldName.endsWith(PREFIX_FIELD_SUFFIX)) {
+            stream = new EdgeNGramFilter(stream, MAX_PREFIX_LENGTH);
+        }
+        return new TokenStreamComponents(tokenizer, stream);
+    }
+
+    @Override
+    protected TokenStream normalize(String fieldName, TokenStream in) {
+        return new LowerCaseFilter(in);
+    }
+
+    /**
+     * A token filter that replaces each term with all of its prefixes, from
+     * one code point up to a maximum length, at the same position.
+     */
+    private static final class EdgeNGramFilter extends TokenFilter {
+        private final int maxLength;
+        private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+        private final PositionIncrementAttribute positionIncrementAttribute = addAttribute(PositionIncrementAttribute.class);
+
+        private char[] term = new char[0];
+        private int termCodePoints;
+        private int prefixCodePoints;
+        private State state = null;
+
+        private EdgeNGramFilter(TokenStream input, int maxLength) {
+            super(input);
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (state == null || prefixCodePoints >= Math.min(termCodePoints, maxLength)) {
+                if (!input.incrementToken()) return false;
+                term = termAttribute.toString().toCharArray();
+                termCodePoints = Character.codePointCount(term, 0, term.length);
+                prefixCodePoints = 0;
+                state = captureState();
+            } else {
+                restoreState(state);
+                positionIncrementAttribute.setPositionIncrement(0);
+            }
+            prefixCodePoints++;
+            termAttribute.copyBuffer(term, 0, Character.offsetByCodePoints(term, 0, term.length, 0, prefixCodePoints));
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            state = null;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.andrewlalis.d_package_search.impl;
+
+import com.andrewlalis.d_package_search.PackageSearchResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * An index searcher that also holds everything we precompute for a single
+ * version of the index when it's opened, so that it's always consistent with
+ * the index that's being searched.
+ */
+final class PackageIndexSearcher extends IndexSearcher {
+    /**
+     * The name of the commit user data entry that holds the index's
+     * generation id.
+     */
+    static final String GENERATION_KEY = "generation";
+
+    /**
+     * The name of the commit user data entry that holds the time at which the
+     * index was committed, in milliseconds since the epoch.
+     */
+    static final String TIMESTAMP_KEY = "timestamp";
+
+    private static final Set<String> RESULT_FIELDS = Set.of("name", "url");
+    private static final ObjectMapper RESULT_MAPPER = new ObjectMapper();
+
+    private final String version;
+    private final PackageNameSuggester suggester;
+    private final SpellingDictionary spellingDictionary;
+    private final PackageSearchResult[] results;
+
+    PackageIndexSearcher(IndexReader reader, Executor executor) throws IOException {
+        super(reader, executor);
+        DirectoryReader directoryReader = (DirectoryReader) reader;
+        String generation = directoryReader.getIndexCommit().getUserData().getOrDefault(GENERATION_KEY, "0");
+        this.version = generation + "-" + directoryReader.getVersion();
+        this.suggester = PackageNameSuggester.build(reader);
+        this.spellingDictionary = SpellingDictionary.build(reader);
+        this.results = buildResults(reader);
+    }
+
+    /**
+     * Gets a string that uniquely identifies the version of the index that
+     * this searcher sees, made up of the index generation and the reader's
+     * version within that generation.
+     * @return The index version.
+     */
+    String getVersion() {
+        return version;
+    }
+
+    PackageNameSuggester getSuggester() {
+        return suggester;
+    }
+
+    SpellingDictionary getSpellingDictionary() {
+        return spellingDictionary;
+    }
+
+    /**
+     * Gets the search result for a document, along with its JSON, which are
+     * built once when the searcher is opened so that searches don't have to
+     * load stored fields or serialize results.
+     * @param doc The document id.
+     * @return The search result, without any explanation or highlights.
+     */
+    PackageSearchResult getResult(int doc) {
+        return results[doc];
+    }
+
+    private static PackageSearchResult[] buildResults(IndexReader reader) throws IOException {
+        PackageSearchResult[] results = new PackageSearchResult[reader.maxDoc()];
+        StoredFields storedFields = reader.storedFields();
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+        for (int i = 0; i < results.length; i++) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            Document doc = storedFields.document(i, RESULT_FIELDS);
+            String name = doc.get("name");
+            String url = doc.get("url");
+            byte[] json = RESULT_MAPPER.writeValueAsBytes(new PackageSearchResult(name, url, null, null, null));
+            results[i] = new PackageSearchResult(name, url, null, null, json);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,124 @@
+package com.andrewlalis.d_package_search.impl;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+import org.apache.lucene.util.fst.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Suggests package names that complete a given prefix, using a compact
+ * in-memory finite state transducer (FST) that maps each lower-cased package
+ * name to a cost derived from its downloads, so that the most popular
+ * completions can be found by a shortest-path search from the prefix. This
+ * is the same approach as Lucene's WFSTCompletionLookup, and it's built once
+ * for each version of the index that's opened for searching.
+ */
+final class PackageNameSuggester {
+    private final FST<Long> fst;
+
+    /**
+     * A mapping of lower-cased package names to their original form.
+     */
+    private final Map<String, String> names;
+
+    private PackageNameSuggester(FST<Long> fst, Map<String, String> names) {
+        this.fst = fst;
+        this.names = names;
+    }
+
+    /**
+     * Builds a suggester from all package names in an index.
+     * @param reader The index reader to read package names and downloads from.
+     * @return The suggester.
+     * @throws IOException If the index couldn't be read.
+     */
+    static PackageNameSuggester build(IndexReader reader) throws IOException {
+        Map<String, String> names = new HashMap<>();
+        Map<String, Long> downloads = new HashMap<>();
+        for (LeafReaderContext ctx : reader.leaves()) {
+            LeafReader leafReader = ctx.reader();
+            StoredFields storedFields = leafReader.storedFields();
+            NumericDocValues downloadsValues = leafReader.getNumericDocValues("downloads");
+            Bits liveDocs = leafReader.getLiveDocs();
+            for (int i = 0; i < leafReader.maxDoc(); i++) {
+                if (liveDocs != null && !liveDocs.get(i)) continue;
+                String name = storedFields.document(i, Set.of("name")).get("name");
+                long packageDownloads = downloadsValues != null && downloadsValues.advanceExact(i)
+                        ? downloadsValues.longValue()
+                        : 0;
+                String key = name.toLowerCase();
+                if (packageDownloads >= downloads.getOrDefault(key, -1L)) {
+                    names.put(key, name);
+                    downloads.put(key, packageDownloads);
+                }
+            }
+        }
+
+        // FST inputs must be added in sorted order.
+        List<BytesRef> keys = new ArrayList<>(names.size());
+        for (String key : names.keySet()) {
+            keys.add(new BytesRef(key));
+        }
+        Collections.sort(keys);
+        FSTCompiler<Long> compiler = new FSTCompiler<>(FST.INPUT_TYPE.BYTE1, PositiveIntOutputs.getSingleton());
+        IntsRefBuilder scratch = new IntsRefBuilder();
+        for (BytesRef key : keys) {
+            compiler.add(Util.toIntsRef(key, scratch), encodeWeight(downloads.get(key.utf8ToString())));
+        }
+        return new PackageNameSuggester(compiler.compile(), names);
+    }
+
+    /**
+     * Suggests package names that start with the given prefix, ordered by
+     * their number of downloads, from most to least.
+     * @param prefix The prefix. It's matched case-insensitively.
+     * @param limit The maximum number of suggestions to return.
+     * @return The suggested package names.
+     * @throws IOException If the FST couldn't be read.
+     */
+    List<String> suggest(String prefix, int limit) throws IOException {
+        if (fst == null || limit < 1) return Collections.emptyList();
+        byte[] prefixBytes = prefix.toLowerCase().getBytes(StandardCharsets.UTF_8);
+        FST.BytesReader bytesReader = fst.getBytesReader();
+        FST.Arc<Long> arc = fst.getFirstArc(new FST.Arc<>());
+        Long prefixOutput = fst.outputs.getNoOutput();
+        for (byte b : prefixBytes) {
+            if (fst.findTargetArc(b & 0xFF, arc, arc, bytesReader) == null) {
+                return Collections.emptyList();
+            }
+            prefixOutput = fst.outputs.add(prefixOutput, arc.output());
+        }
+
+        Util.TopNSearcher<Long> searcher = new Util.TopNSearcher<>(fst, limit, limit, Comparator.naturalOrder());
+        searcher.addStartPaths(arc, prefixOutput, true, new IntsRefBuilder());
+        Util.TopResults<Long> completions = searcher.search();
+        List<String> suggestions = new ArrayList<>(completions.topN.size());
+        BytesRefBuilder completion = new BytesRefBuilder();
+        BytesRefBuilder suffix = new BytesRefBuilder();
+        for (Util.Result<Long> result : completions) {
+            completion.copyBytes(prefixBytes, 0, prefixBytes.length);
+            completion.append(Util.toBytesRef(result.input, suffix));
+            suggestions.add(names.get(completion.get().utf8ToString()));
+        }
+        return suggestions;
+    }
+
+    /**
+     * Gets the approximate amount of memory used by this suggester's FST.
+     * @return The size in bytes.
+     */
+    long ramBytesUsed() {
+        return fst == null ? 0 : fst.ramBytesUsed();
+    }
+
+    /**
+     * Encodes a package's downloads as a cost, so that the most downloaded
+     * packages have the lowest cost and are found first.
+     */
+    private static long encodeWeight(long downloads) {
+        return Long.MAX_VALUE - Math.max(0, downloads);
+    }
+}
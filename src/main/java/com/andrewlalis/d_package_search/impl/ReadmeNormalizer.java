@@ -0,0 +1,57 @@
+package com.andrewlalis.d_package_search.impl;
+
+import java.util.regex.Pattern;
+
+/**
+ * Turns a package's markdown readme into plain text before it's indexed, so
+ * that markup doesn't end up in its terms or highlighted snippets, and caps
+ * its length, so that the cost of indexing and highlighting a readme is
+ * bounded no matter how large it is.
+ */
+final class ReadmeNormalizer {
+    /**
+     * The maximum length of a normalized readme, in characters.
+     */
+    static final int MAX_LENGTH = 10_000;
+
+    private static final Pattern FENCED_CODE = Pattern.compile("(?s)(```|~~~).*?(\\1|\\z)");
+    private static final Pattern HTML_COMMENT = Pattern.compile("(?s)<!--.*?(-->|\\z)");
+    private static final Pattern HTML_TAG = Pattern.compile("</?[a-zA-Z][^>]*>");
+    private static final Pattern IMAGE = Pattern.compile("!\\[([^]]*)]\\([^)]*\\)");
+    private static final Pattern LINK = Pattern.compile("\\[([^]]*)]\\([^)]*\\)");
+    private static final Pattern REFERENCE_DEFINITION = Pattern.compile("(?m)^\\s*\\[[^]]+]:\\s*\\S+.*$");
+    private static final Pattern LINE_PREFIX = Pattern.compile("(?m)^\\s*(#{1,6}\\s+|>\\s?|[-*+]\\s+|\\d+\\.\\s+)");
+    private static final Pattern HORIZONTAL_RULE = Pattern.compile("(?m)^\\s*([-*_=]\\s*){3,}$");
+    // Underscores inside words are part of identifiers, so only strip those at the edges of words.
+    private static final Pattern EMPHASIS = Pattern.compile("(?<!\\w)[*_~]+|[*_~]+(?!\\w)|[`|]+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private ReadmeNormalizer() {}
+
+    /**
+     * Normalizes a readme.
+     * @param markdown The readme's markdown.
+     * @return The readme's text, with markup removed, whitespace collapsed,
+     * and cut off at the last whole word within {@link #MAX_LENGTH}
+     * characters.
+     */
+    static String normalize(String markdown) {
+        // Don't bother stripping markup from the part of a huge readme that would be cut off anyway.
+        String text = markdown.length() > MAX_LENGTH * 4 ? markdown.substring(0, MAX_LENGTH * 4) : markdown;
+        text = FENCED_CODE.matcher(text).replaceAll(" ");
+        text = HTML_COMMENT.matcher(text).replaceAll(" ");
+        text = HTML_TAG.matcher(text).replaceAll(" ");
+        text = IMAGE.matcher(text).replaceAll("$1");
+        text = LINK.matcher(text).replaceAll("$1");
+        text = REFERENCE_DEFINITION.matcher(text).replaceAll(" ");
+        text = HORIZONTAL_RULE.matcher(text).replaceAll(" ");
+        text = LINE_PREFIX.matcher(text).replaceAll("");
+        text = EMPHASIS.matcher(text).replaceAll(" ");
+        text = WHITESPACE.matcher(text).replaceAll(" ").trim();
+        if (text.length() > MAX_LENGTH) {
+            int end = text.lastIndexOf(' ', MAX_LENGTH);
+            text = text.substring(0, end > 0 ? end : MAX_LENGTH);
+        }
+        return text;
+    }
+}
@@ -0,0 +1,208 @@
+package com.andrewlalis.d_package_search.impl;
+
+import com.andrewlalis.d_package_search.Log;
+import com.andrewlalis.d_package_search.PackageInfo;
+import com.andrewlalis.d_package_search.ThrowableConsumer;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A parser for the Dub registry's JSON dump, which is an array of package
+ * objects. The dump is parsed as a stream, one package at a time, so that
+ * only a single package needs to be held in memory at once. Only the README
+ * of each package's latest version is kept, since the others are never
+ * indexed.
+ */
+public class RegistryDumpParser {
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * Wraps the given input stream so that it's transparently decompressed if
+	 * it's gzipped, which is detected by looking at its first bytes.
+	 * @param in The input stream to read a dump from.
+	 * @return An input stream that reads the uncompressed dump.
+	 * @throws IOException If the stream couldn't be read.
+	 */
+	public static InputStream decompressIfGzipped(InputStream in) throws IOException {
+		BufferedInputStream bufferedIn = new BufferedInputStream(in);
+		bufferedIn.mark(2);
+		int b1 = bufferedIn.read();
+		int b2 = bufferedIn.read();
+		bufferedIn.reset();
+		if (b1 == (GZIPInputStream.GZIP_MAGIC & 0xFF) && b2 == (GZIPInputStream.GZIP_MAGIC >> 8)) {
+			return new GZIPInputStream(bufferedIn);
+		}
+		return bufferedIn;
+	}
+
+	/**
+	 * Parses packages from a JSON array of package objects, one at a time.
+	 * @param in The input stream to read JSON from.
+	 * @param fetchedAt The time at which the packages were fetched.
+	 * @param consumer The consumer to pass each parsed package to.
+	 * @throws Exception If the JSON couldn't be read, or the consumer threw
+	 * an exception.
+	 */
+	public void parse(InputStream in, LocalDateTime fetchedAt, ThrowableConsumer<PackageInfo> consumer) throws Exception {
+		try (JsonParser parser = mapper.createParser(in)) {
+			if (parser.nextToken() != JsonToken.START_ARRAY) {
+				throw new IOException("Expected a JSON array of packages.");
+			}
+			JsonToken token;
+			while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+				if (token == null) throw new IOException("Unexpected end of JSON input.");
+				if (token != JsonToken.START_OBJECT) {
+					parser.skipChildren();
+					continue;
+				}
+				PackageInfo info = parsePackage(parser, fetchedAt);
+				if (info != null) {
+					consumer.accept(info);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses a single package object, whose start token the parser is
+	 * currently on, and leaves the parser on its end token.
+	 * @param parser The JSON parser.
+	 * @param fetchedAt The time at which the package was fetched.
+	 * @return The package, or null if it's invalid.
+	 * @throws IOException If the JSON couldn't be read.
+	 */
+	private PackageInfo parsePackage(JsonParser parser, LocalDateTime fetchedAt) throws IOException {
+		String name = null;
+		String[] categories = new String[0];
+		List<PackageInfo.VersionInfo> versions = new ArrayList<>();
+		int latestVersionIdx = -1;
+		long totalDownloads = 0;
+		RuntimeException error = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.currentName();
+			JsonToken valueToken = parser.nextToken();
+			try {
+				switch (field) {
+					case "name" -> name = parser.getValueAsString();
+					case "categories" -> {
+						JsonNode node = mapper.readTree(parser);
+						if (node.isArray()) {
+							categories = mapJsonArray((ArrayNode) node, JsonNode::asText).toArray(categories);
+						}
+					}
+					case "stats" -> {
+						JsonNode node = mapper.readTree(parser);
+						totalDownloads = node.get("downloads").get("total").asLong();
+					}
+					case "versions" -> {
+						if (valueToken != JsonToken.START_ARRAY) {
+							parser.skipChildren();
+							break;
+						}
+						// Read one version at a time, and only keep the latest version's README.
+						while (parser.nextToken() != JsonToken.END_ARRAY) {
+							JsonNode versionNode = mapper.readTree(parser);
+							PackageInfo.VersionInfo version;
+							try {
+								version = parseVersion(versionNode);
+							} catch (RuntimeException e) {
+								error = e;
+								continue;
+							}
+							if (latestVersionIdx == -1 || version.timestamp().isAfter(versions.get(latestVersionIdx).timestamp())) {
+								if (latestVersionIdx != -1) {
+									versions.set(latestVersionIdx, withoutReadme(versions.get(latestVersionIdx)));
+								}
+								latestVersionIdx = versions.size();
+								versions.add(version);
+							} else {
+								versions.add(withoutReadme(version));
+							}
+						}
+					}
+					default -> parser.skipChildren();
+				}
+			} catch (RuntimeException e) {
+				// Remember the error, but keep going so the parser ends up after this package.
+				error = e;
+			}
+		}
+		if (error != null || name == null) {
+			Log.warn("Failed to parse package from JSON object: {}", error == null ? "Missing name." : error.getMessage());
+			return null;
+		}
+		return new PackageInfo(
+				name,
+				categories,
+				versions.toArray(new PackageInfo.VersionInfo[0]),
+				totalDownloads,
+				fetchedAt
+		);
+	}
+
+	private PackageInfo.VersionInfo parseVersion(JsonNode node) {
+		String description = null;
+		String license = null;
+		String[] authors = new String[0];
+		if (node.hasNonNull("info")) {
+			JsonNode infoNode = node.get("info");
+			if (infoNode.hasNonNull("description")) {
+				description = infoNode.get("description").asText();
+			}
+			if (infoNode.hasNonNull("license")) {
+				license = infoNode.get("license").asText();
+			}
+			if (infoNode.hasNonNull("authors")) {
+				authors = mapJsonArray(infoNode.withArray("authors"), JsonNode::asText).toArray(authors);
+			}
+		}
+		return new PackageInfo.VersionInfo(
+				OffsetDateTime.parse(node.get("date").asText()).atZoneSameInstant(ZoneOffset.UTC).toLocalDateTime(),
+				node.get("version").asText(),
+				description,
+				license,
+				authors,
+				node.get("readme").asText()
+		);
+	}
+
+	private static PackageInfo.VersionInfo withoutReadme(PackageInfo.VersionInfo version) {
+		return new PackageInfo.VersionInfo(
+				version.timestamp(),
+				version.versionTag(),
+				version.description(),
+				version.license(),
+				version.authors(),
+				null
+		);
+	}
+
+	/**
+	 * Maps a JSON array to a list of objects, using a mapping function.
+	 * @param array The JSON array.
+	 * @param mapper The mapper function to apply to each element of the array.
+	 * @return The mapped list of objects.
+	 * @param <T> The type of the resultant list elements.
+	 */
+	private static <T> List<T> mapJsonArray(ArrayNode array, Function<JsonNode, T> mapper) {
+		List<T> list = new ArrayList<>(array.size());
+		for (JsonNode node : array) {
+			list.add(mapper.apply(node));
+		}
+		return list;
+	}
+}
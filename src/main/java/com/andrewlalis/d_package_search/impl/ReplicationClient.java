@@ -0,0 +1,248 @@
+package com.andrewlalis.d_package_search.impl;
+
+import com.andrewlalis.d_package_search.Log;
+import com.andrewlalis.d_package_search.ReplicationSource;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a read-only search node's index in sync with an indexer node's, by
+ * periodically fetching the indexer's latest snapshot from its
+ * {@code /replication} endpoints, and copying only the files that this node
+ * doesn't already have.
+ * <ul>
+ *     <li>
+ *         If the snapshot is a new commit of the generation we already have,
+ *         its new files are copied into the generation's directory, and then
+ *         its segments file, which atomically makes the new commit the
+ *         latest one.
+ *     </li>
+ *     <li>
+ *         If the snapshot is of the generation we kept as our previous one,
+ *         because the indexer rolled back to it, we roll back too, and then
+ *         copy its new files in place, like a new commit.
+ *     </li>
+ *     <li>
+ *         If the snapshot is of a different generation, it's copied into a
+ *         new generation directory, reusing any identical files from the
+ *         current generation, and then published, just like a generation
+ *         that was built locally.
+ *     </li>
+ * </ul>
+ * Every copied file's checksum is verified before it's moved into place. If
+ * the indexer's index changes while a snapshot is being copied, the copy
+ * fails, and is simply tried again the next time.
+ */
+public class ReplicationClient {
+    private static final String DOWNLOAD_SUFFIX = ".download";
+
+    private final IndexGenerations generations;
+    private final String primaryUrl;
+    private final Runnable indexUpdatedListener;
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Creates a replication client.
+     * @param generations The local index generations.
+     * @param primaryUrl The base URL of the indexer node's web server.
+     * @param indexUpdatedListener A listener that's called whenever a new
+     *                             snapshot has been copied, so searchers can
+     *                             refresh.
+     */
+    public ReplicationClient(IndexGenerations generations, String primaryUrl, Runnable indexUpdatedListener) {
+        this.generations = generations;
+        this.primaryUrl = primaryUrl.endsWith("/") ? primaryUrl.substring(0, primaryUrl.length() - 1) : primaryUrl;
+        this.indexUpdatedListener = indexUpdatedListener;
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    /**
+     * Copies the indexer's latest snapshot, if it's different from what we
+     * have.
+     * @return True if a new snapshot was copied.
+     * @throws IOException If the snapshot couldn't be fetched or copied.
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    public boolean sync() throws IOException, InterruptedException {
+        ReplicationSource.Snapshot snapshot = fetchSnapshot();
+        if (snapshot == null) return false;
+        Optional<IndexGenerations.Generation> current = generations.getCurrent();
+        long start = System.nanoTime();
+        long copiedBytes;
+        boolean rolledBack = false;
+        Optional<IndexGenerations.Generation> previous = generations.getPrevious();
+        if (
+                (current.isEmpty() || current.get().id() != snapshot.generation()) &&
+                previous.isPresent() && previous.get().id() == snapshot.generation() &&
+                generations.rollback()
+        ) {
+            // The indexer rolled back to the generation that we kept as our previous one.
+            Log.info("Rolled back to index generation {}, like the indexer.", snapshot.generation());
+            current = previous;
+            rolledBack = true;
+        }
+        if (current.isPresent() && current.get().id() == snapshot.generation()) {
+            Path dir = current.get().path();
+            if (Files.exists(dir.resolve(snapshot.segmentsFile()))) {
+                if (!rolledBack) return false;
+                copiedBytes = 0;
+            } else {
+                copiedBytes = copySnapshot(snapshot, dir, null);
+            }
+            indexUpdatedListener.run();
+            deleteUnreferencedFiles(snapshot, dir);
+        } else {
+            IndexGenerations.Generation generation = generations.create(snapshot.generation());
+            try {
+                copiedBytes = copySnapshot(snapshot, generation.path(), current.map(IndexGenerations.Generation::path).orElse(null));
+            } catch (IOException | RuntimeException e) {
+                generations.delete(generation);
+                throw e;
+            }
+            generations.publish(generation);
+            indexUpdatedListener.run();
+        }
+        Log.info(
+                "Replicated {} of index generation {}, copying {} KB in {} ms.",
+                snapshot.segmentsFile(),
+                snapshot.generation(),
+                copiedBytes / 1024,
+                (System.nanoTime() - start) / 1_000_000
+        );
+        return true;
+    }
+
+    private ReplicationSource.Snapshot fetchSnapshot() throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = httpClient.send(
+                HttpRequest.newBuilder(URI.create(primaryUrl + "/replication/snapshot")).build(),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+        if (response.statusCode() == 204) return null;
+        if (response.statusCode() != 200) {
+            throw new IOException("Failed to fetch snapshot: HTTP " + response.statusCode());
+        }
+        return objectMapper.readValue(response.body(), ReplicationSource.Snapshot.class);
+    }
+
+    /**
+     * Copies a snapshot's files into a directory, copying the segments file
+     * last.
+     * @param snapshot The snapshot to copy.
+     * @param dir The directory to copy it into.
+     * @param reuseDir Another directory whose identical files can be reused
+     *                 instead of downloading them, or null.
+     * @return The number of bytes that were downloaded.
+     * @throws IOException If a file couldn't be copied or verified.
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    private long copySnapshot(ReplicationSource.Snapshot snapshot, Path dir, Path reuseDir) throws IOException, InterruptedException {
+        List<ReplicationSource.SnapshotFile> files = new ArrayList<>(snapshot.files());
+        files.sort(Comparator.comparing(f -> f.name().equals(snapshot.segmentsFile())));
+        long copiedBytes = 0;
+        try (
+                Directory directory = FSDirectory.open(dir);
+                Directory reuseDirectory = reuseDir == null ? null : FSDirectory.open(reuseDir)
+        ) {
+            for (ReplicationSource.SnapshotFile file : files) {
+                Path target = dir.resolve(file.name());
+                if (Files.exists(target)) {
+                    if (!matches(directory, file.name(), file)) {
+                        throw new IOException("Local file " + file.name() + " is different from the snapshot's.");
+                    }
+                    continue;
+                }
+                if (reuseDirectory != null && Files.exists(reuseDir.resolve(file.name())) &&
+                        matches(reuseDirectory, file.name(), file)) {
+                    // Index files are never modified, so they can be shared between generations.
+                    try {
+                        Files.createLink(target, reuseDir.resolve(file.name()));
+                    } catch (UnsupportedOperationException | IOException e) {
+                        Files.copy(reuseDir.resolve(file.name()), target);
+                    }
+                    continue;
+                }
+                Path download = dir.resolve(file.name() + DOWNLOAD_SUFFIX);
+                HttpResponse<Path> response = httpClient.send(
+                        HttpRequest.newBuilder(URI.create(
+                                primaryUrl + "/replication/file?generation=" + snapshot.generation() +
+                                "&name=" + URLEncoder.encode(file.name(), StandardCharsets.UTF_8)
+                        )).build(),
+                        HttpResponse.BodyHandlers.ofFile(download)
+                );
+                if (response.statusCode() != 200) {
+                    Files.deleteIfExists(download);
+                    throw new IOException("Failed to download " + file.name() + ": HTTP " + response.statusCode());
+                }
+                if (!verify(directory, file.name() + DOWNLOAD_SUFFIX, file)) {
+                    Files.deleteIfExists(download);
+                    throw new IOException("Downloaded file " + file.name() + " is corrupt.");
+                }
+                Files.move(download, target, StandardCopyOption.ATOMIC_MOVE);
+                copiedBytes += file.length();
+            }
+        }
+        return copiedBytes;
+    }
+
+    /**
+     * Checks if a local file has the same length and footer checksum as a
+     * snapshot's file.
+     */
+    private static boolean matches(Directory dir, String name, ReplicationSource.SnapshotFile file) throws IOException {
+        try (IndexInput in = dir.openInput(name, IOContext.READONCE)) {
+            return in.length() == file.length() && CodecUtil.retrieveChecksum(in) == file.checksum();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks a downloaded file's length, and that its entire contents match
+     * the checksum in its footer, and the snapshot's checksum.
+     */
+    private static boolean verify(Directory dir, String name, ReplicationSource.SnapshotFile file) throws IOException {
+        try (IndexInput in = dir.openInput(name, IOContext.READONCE)) {
+            return in.length() == file.length() && CodecUtil.checksumEntireFile(in) == file.checksum();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the files of older commits from a generation's directory, once
+     * searchers have moved on to the new commit. Searches that are still
+     * using an older searcher keep their files open, so they're unaffected.
+     */
+    private static void deleteUnreferencedFiles(ReplicationSource.Snapshot snapshot, Path dir) throws IOException {
+        Set<String> referenced = snapshot.files().stream()
+                .map(ReplicationSource.SnapshotFile::name)
+                .collect(Collectors.toSet());
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                if (!referenced.contains(file.getFileName().toString())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.andrewlalis.d_package_search.impl;
+
+import org.apache.lucene.search.ScoreDoc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A cursor that points to the last hit on a page of search results, so that
+ * a later search can continue after it. Document ids are only meaningful
+ * within a single version of the index, so the cursor includes the version
+ * too, and whether the results are in the order of a two-phase search, so
+ * that every page of a search is in the same order.
+ * @param indexVersion The version of the index that was searched.
+ * @param rescored Whether the results are in the order of a two-phase search.
+ * @param doc The last hit's document id.
+ * @param score The last hit's score.
+ */
+record SearchCursor(String indexVersion, boolean rescored, int doc, float score) {
+    /**
+     * Gets the hit to search after.
+     * @return The last hit.
+     */
+    ScoreDoc lastHit() {
+        return new ScoreDoc(doc, score);
+    }
+
+    /**
+     * Encodes this cursor as an opaque, URL-safe string.
+     * @return The encoded cursor.
+     */
+    String encode() {
+        String cursor = indexVersion + ":" + (rescored ? "r" : "f") + ":" + Float.floatToIntBits(score) + ":" + doc;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a cursor that was produced by {@link #encode()}.
+     * @param cursor The encoded cursor.
+     * @param indexVersion The version of the index that's being searched.
+     * @return The cursor.
+     * @throws IllegalArgumentException If the cursor is malformed, or is from
+     * a different version of the index.
+     */
+    static SearchCursor decode(String cursor, String indexVersion) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor.");
+        }
+        if (parts.length != 4 || !(parts[1].equals("r") || parts[1].equals("f"))) {
+            throw new IllegalArgumentException("Invalid cursor.");
+        }
+        if (!parts[0].equals(indexVersion)) {
+            throw new IllegalArgumentException("Cursor has expired because the index was updated. Please search again.");
+        }
+        try {
+            return new SearchCursor(
+                    parts[0],
+                    parts[1].equals("r"),
+                    Integer.parseInt(parts[3]),
+                    Float.intBitsToFloat(Integer.parseInt(parts[2]))
+            );
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor.");
+        }
+    }
+}
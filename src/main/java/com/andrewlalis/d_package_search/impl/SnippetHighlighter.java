@@ -0,0 +1,158 @@
+package com.andrewlalis.d_package_search.impl;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds a short snippet of a stored field's text around the places where a
+ * search's terms matched, with each match wrapped in a {@code <mark>} tag.
+ * Matches are found from the offsets that are indexed in the field's
+ * postings, so the field's text never has to be analyzed again; only the
+ * stored text is loaded, to cut the snippet from.
+ */
+final class SnippetHighlighter {
+    /**
+     * The approximate length of a snippet, in characters.
+     */
+    static final int SNIPPET_LENGTH = 160;
+
+    /**
+     * How much text to show before the first match in a snippet.
+     */
+    private static final int LEADING_CONTEXT = 30;
+
+    /**
+     * The maximum number of indexed terms that a prefix is expanded to.
+     */
+    private static final int MAX_PREFIX_EXPANSIONS = 16;
+
+    /**
+     * The maximum number of matches to find in a single field.
+     */
+    private static final int MAX_MATCHES = 64;
+
+    private SnippetHighlighter() {}
+
+    /**
+     * Builds a snippet of a document's field.
+     * @param reader The index reader.
+     * @param doc The document id.
+     * @param field The field, which must be stored, and indexed with offsets.
+     * @param terms The search terms.
+     * @param prefixes Whether search terms match any indexed term that they
+     *                 are a prefix of, rather than only the same term.
+     * @return The snippet, as HTML, or null if none of the terms matched the
+     * field.
+     * @throws IOException If the index couldn't be read.
+     */
+    static String highlight(IndexReader reader, int doc, String field, List<String> terms, boolean prefixes) throws IOException {
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+        Terms fieldTerms = leaf.reader().terms(field);
+        if (fieldTerms == null || !fieldTerms.hasOffsets()) return null;
+
+        int leafDoc = doc - leaf.docBase;
+        List<int[]> matches = new ArrayList<>();
+        TermsEnum termsEnum = fieldTerms.iterator();
+        PostingsEnum postings = null;
+        for (String term : terms) {
+            BytesRef termBytes = new BytesRef(term);
+            if (prefixes) {
+                if (termsEnum.seekCeil(termBytes) == TermsEnum.SeekStatus.END) continue;
+                int expansions = 0;
+                do {
+                    if (!StringHelper.startsWith(termsEnum.term(), termBytes)) break;
+                    postings = collectMatches(termsEnum, postings, leafDoc, matches);
+                } while (++expansions < MAX_PREFIX_EXPANSIONS && termsEnum.next() != null);
+            } else if (termsEnum.seekExact(termBytes)) {
+                postings = collectMatches(termsEnum, postings, leafDoc, matches);
+            }
+            if (matches.size() >= MAX_MATCHES) break;
+        }
+        if (matches.isEmpty()) return null;
+
+        String text = reader.storedFields().document(doc, Set.of(field)).get(field);
+        if (text == null) return null;
+        matches.sort(Comparator.comparingInt(m -> m[0]));
+        return buildSnippet(text, matches);
+    }
+
+    private static PostingsEnum collectMatches(TermsEnum termsEnum, PostingsEnum reuse, int doc, List<int[]> matches) throws IOException {
+        PostingsEnum postings = termsEnum.postings(reuse, PostingsEnum.OFFSETS);
+        if (postings.advance(doc) == doc) {
+            for (int i = 0; i < postings.freq() && matches.size() < MAX_MATCHES; i++) {
+                postings.nextPosition();
+                matches.add(new int[] {postings.startOffset(), postings.endOffset()});
+            }
+        }
+        return postings;
+    }
+
+    /**
+     * Cuts a snippet from the text, in the window that contains the most
+     * matches, and marks the matches in it.
+     * @param text The field's text.
+     * @param matches The start and end offsets of each match, sorted by start.
+     * @return The snippet, as HTML.
+     */
+    private static String buildSnippet(String text, List<int[]> matches) {
+        int bestMatch = 0;
+        int bestCount = 0;
+        for (int i = 0, j = 0; i < matches.size(); i++) {
+            while (j < matches.size() && matches.get(j)[1] <= matches.get(i)[0] + SNIPPET_LENGTH - LEADING_CONTEXT) j++;
+            if (j - i > bestCount) {
+                bestCount = j - i;
+                bestMatch = i;
+            }
+        }
+
+        int start = Math.max(0, matches.get(bestMatch)[0] - LEADING_CONTEXT);
+        if (start > 0) {
+            // Start at the beginning of a word.
+            int space = text.indexOf(' ', start);
+            if (space != -1 && space < matches.get(bestMatch)[0]) start = space + 1;
+        }
+        int end = Math.min(text.length(), start + SNIPPET_LENGTH);
+        if (end < text.length()) {
+            // End at the end of a word, unless that would cut off a match.
+            int space = text.lastIndexOf(' ', end);
+            if (space > matches.get(bestMatch)[1]) end = space;
+        }
+
+        StringBuilder sb = new StringBuilder(SNIPPET_LENGTH + 64);
+        if (start > 0) sb.append("\u2026");
+        int pos = start;
+        for (int[] match : matches) {
+            if (match[0] < pos || match[1] > end) continue;
+            appendEscaped(sb, text, pos, match[0]);
+            sb.append("<mark>");
+            appendEscaped(sb, text, match[0], match[1]);
+            sb.append("</mark>");
+            pos = match[1];
+        }
+        appendEscaped(sb, text, pos, end);
+        if (end < text.length()) sb.append("\u2026");
+        return sb.toString();
+    }
+
+    private static void appendEscaped(StringBuilder sb, String text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<' -> sb.append("&lt;");
+                case '>' -> sb.append("&gt;");
+                case '&' -> sb.append("&amp;");
+                case '"' -> sb.append("&quot;");
+                case '\'' -> sb.append("&#39;");
+                default -> sb.append(c);
+            }
+        }
+    }
+}
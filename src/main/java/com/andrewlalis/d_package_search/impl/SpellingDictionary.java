@@ -0,0 +1,205 @@
+package com.andrewlalis.d_package_search.impl;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A dictionary of the words in package names, used to suggest corrections for
+ * misspelled search terms. It holds every whole package name and every term
+ * of the "name" field, weighted by how many packages they appear in, and is
+ * built once for each version of the index that's opened for searching.
+ * <p>
+ * Words are grouped by length, and sorted, so a correction is only looked
+ * for among words whose length is within the maximum number of edits of the
+ * misspelled word, and that start with the same letter, and comparing two
+ * words stops as soon as they're known to be too far apart.
+ * </p>
+ */
+final class SpellingDictionary {
+    /**
+     * Words shorter than this aren't corrected, since almost any other short
+     * word would be within an edit of them.
+     */
+    static final int MIN_WORD_LENGTH = 3;
+
+    /**
+     * The number of leading characters that a correction must have in common
+     * with a word. Fuzzy searches use this too, so that a suggestion never
+     * names a term that a fuzzy search wouldn't match.
+     */
+    static final int PREFIX_LENGTH = 1;
+
+    /**
+     * Words longer than this are left out of the dictionary, and aren't
+     * corrected.
+     */
+    private static final int MAX_WORD_LENGTH = 64;
+
+    /**
+     * For each word length, the words of that length.
+     */
+    private final String[][] wordsByLength;
+
+    /**
+     * For each word length, the weight of each word of that length.
+     */
+    private final int[][] weightsByLength;
+
+    private SpellingDictionary(String[][] wordsByLength, int[][] weightsByLength) {
+        this.wordsByLength = wordsByLength;
+        this.weightsByLength = weightsByLength;
+    }
+
+    /**
+     * Builds a dictionary from the package names in an index.
+     * @param reader The index reader to read package names from.
+     * @return The dictionary.
+     * @throws IOException If the index couldn't be read.
+     */
+    static SpellingDictionary build(IndexReader reader) throws IOException {
+        Map<String, Integer> weights = new HashMap<>();
+        addTerms(reader, "name", weights);
+        addTerms(reader, "id", weights);
+
+        List<List<String>> words = new ArrayList<>(MAX_WORD_LENGTH + 1);
+        for (int i = 0; i <= MAX_WORD_LENGTH; i++) words.add(new ArrayList<>());
+        for (String word : weights.keySet()) {
+            words.get(word.length()).add(word);
+        }
+        String[][] wordsByLength = new String[MAX_WORD_LENGTH + 1][];
+        int[][] weightsByLength = new int[MAX_WORD_LENGTH + 1][];
+        for (int i = 0; i <= MAX_WORD_LENGTH; i++) {
+            wordsByLength[i] = words.get(i).toArray(String[]::new);
+            Arrays.sort(wordsByLength[i]);
+            weightsByLength[i] = new int[wordsByLength[i].length];
+            for (int j = 0; j < wordsByLength[i].length; j++) {
+                weightsByLength[i][j] = weights.get(wordsByLength[i][j]);
+            }
+        }
+        return new SpellingDictionary(wordsByLength, weightsByLength);
+    }
+
+    private static void addTerms(IndexReader reader, String field, Map<String, Integer> weights) throws IOException {
+        Terms terms = MultiTerms.getTerms(reader, field);
+        if (terms == null) return;
+        TermsEnum termsEnum = terms.iterator();
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            String word = term.utf8ToString().toLowerCase();
+            if (word.length() > MAX_WORD_LENGTH) continue;
+            weights.merge(word, termsEnum.docFreq(), Math::max);
+        }
+    }
+
+    /**
+     * Suggests a correction for each of a query's terms that isn't in the
+     * dictionary.
+     * @param terms The query's lower-cased terms.
+     * @return The query with its misspelled terms corrected, or null if no
+     * term could be corrected.
+     */
+    String suggest(List<String> terms) {
+        boolean corrected = false;
+        StringJoiner suggestion = new StringJoiner(" ");
+        for (String term : terms) {
+            String correction = correct(term);
+            if (correction != null) {
+                suggestion.add(correction);
+                corrected = true;
+            } else {
+                suggestion.add(term);
+            }
+        }
+        return corrected ? suggestion.toString() : null;
+    }
+
+    /**
+     * Finds the closest word in the dictionary to a word that isn't in it,
+     * and that starts with the same {@link #PREFIX_LENGTH} characters. Of the
+     * words that are the fewest edits away, the one that appears in the most
+     * packages is chosen.
+     * @param word The word to correct.
+     * @return The correction, or null if the word is in the dictionary, or
+     * no word is close enough to it.
+     */
+    String correct(String word) {
+        int length = word.length();
+        if (length < MIN_WORD_LENGTH || length > MAX_WORD_LENGTH) return null;
+        if (Arrays.binarySearch(wordsByLength[length], word) >= 0) return null;
+        String prefix = word.substring(0, word.offsetByCodePoints(0, PREFIX_LENGTH));
+        String best = null;
+        int bestDistance = maxEdits(length);
+        int bestWeight = 0;
+        for (int l = Math.max(1, length - bestDistance); l <= Math.min(MAX_WORD_LENGTH, length + bestDistance); l++) {
+            if (Math.abs(l - length) > bestDistance) continue;
+            String[] candidates = wordsByLength[l];
+            int[] weights = weightsByLength[l];
+            // Words are sorted, so those with the prefix come right after where the prefix would be.
+            int start = Arrays.binarySearch(candidates, prefix);
+            if (start < 0) start = -start - 1;
+            for (int i = start; i < candidates.length && candidates[i].startsWith(prefix); i++) {
+                int distance = distance(word, candidates[i], bestDistance);
+                if (distance > bestDistance) continue;
+                if (best == null || distance < bestDistance || weights[i] > bestWeight) {
+                    best = candidates[i];
+                    bestDistance = distance;
+                    bestWeight = weights[i];
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Gets the maximum number of edits that a correction may be from a word,
+     * which is fewer for shorter words, since they have fewer letters to get
+     * right.
+     * @param length The word's length.
+     * @return The maximum number of edits.
+     */
+    static int maxEdits(int length) {
+        return length <= 4 ? 1 : 2;
+    }
+
+    /**
+     * Computes the edit distance between two words, counting insertions,
+     * deletions, substitutions and transpositions of adjacent letters as one
+     * edit each.
+     * @param a The first word.
+     * @param b The second word.
+     * @param max The largest distance that needs to be computed exactly.
+     * @return The distance, or {@code max + 1} if it's greater than max.
+     */
+    static int distance(String a, String b, int max) {
+        int[] twoBack = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) previous[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int d = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d = Math.min(d, twoBack[j - 2] + 1);
+                }
+                current[j] = d;
+                rowMin = Math.min(rowMin, d);
+            }
+            // Every later row's distances are at least this row's smallest one.
+            if (rowMin > max) return max + 1;
+            int[] swap = twoBack;
+            twoBack = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[b.length()], max + 1);
+    }
+}
@@ -0,0 +1,71 @@
+package com.andrewlalis.d_package_search;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexGeneratorTest {
+    /**
+     * An indexer that counts the packages it's given, and fails on one with
+     * a certain name.
+     */
+    private static final class CountingIndexer implements PackageIndexer {
+        private final String failingName;
+        private final AtomicInteger added = new AtomicInteger();
+        private final AtomicBoolean committed = new AtomicBoolean();
+
+        private CountingIndexer(String failingName) {
+            this.failingName = failingName;
+        }
+
+        @Override
+        public void addToIndex(PackageInfo info) throws Exception {
+            if (info.name().equals(failingName)) throw new Exception("Failed to index " + info.name());
+            added.incrementAndGet();
+        }
+
+        @Override
+        public void commit() {
+            committed.set(true);
+        }
+    }
+
+    private static PackageFetcher fetcher(int count) {
+        List<PackageInfo> packages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            packages.add(new PackageInfo("package-" + i, new String[0], new PackageInfo.VersionInfo[0], 0, null));
+        }
+        return () -> packages;
+    }
+
+    @Test
+    void requiresAtLeastOneThread() {
+        assertThrows(IllegalArgumentException.class, () -> new IndexGenerator(fetcher(1), b -> new CountingIndexer(null), () -> {}, 16, 0));
+        assertThrows(IllegalArgumentException.class, () -> new IndexGenerator(fetcher(1), b -> new CountingIndexer(null), () -> {}, 0, 1));
+    }
+
+    @Test
+    void commitsOnceEveryPackageIsIndexed() {
+        CountingIndexer indexer = new CountingIndexer(null);
+        AtomicBoolean updated = new AtomicBoolean();
+        new IndexGenerator(fetcher(1000), b -> indexer, () -> updated.set(true), 4, 3).run(false);
+        assertEquals(1000, indexer.added.get());
+        assertTrue(indexer.committed.get());
+        assertTrue(updated.get());
+    }
+
+    @Test
+    void doesNotCommitWhenIndexingFails() {
+        CountingIndexer indexer = new CountingIndexer("package-500");
+        AtomicBoolean updated = new AtomicBoolean();
+        IndexGenerator generator = new IndexGenerator(fetcher(1000), b -> indexer, () -> updated.set(true), 4, 3);
+        assertThrows(RuntimeException.class, () -> generator.run(false));
+        assertFalse(indexer.committed.get());
+        assertFalse(updated.get());
+    }
+}
@@ -0,0 +1,110 @@
+package com.andrewlalis.d_package_search;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchLimiterTest {
+    /**
+     * A searcher whose searches take a while, and that records how many of
+     * them run at once.
+     */
+    private static final class SlowSearcher implements PackageSearcher {
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+
+        @Override
+        public PackageSearchResponse search(PackageSearchRequest request) {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+            }
+            return PackageSearchResponse.empty("1");
+        }
+    }
+
+    private static List<PackageSearchRequest> requests(int count) {
+        List<PackageSearchRequest> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            requests.add(new PackageSearchRequest("query " + i, 10, null, false, Map.of(), false));
+        }
+        return requests;
+    }
+
+    /**
+     * Runs a batch the same way as the web API: it's admitted first, and
+     * holds its permit until all of its searches are done.
+     */
+    private static void runBatch(SearchLimiter limiter, PackageSearcher searcher, ExecutorService executor, int size) throws InterruptedException {
+        assertEquals(SearchLimiter.Admission.ADMITTED, limiter.tryAcquire());
+        try {
+            for (CompletableFuture<PackageSearchResponse> future : searcher.searchBatch(requests(size), limiter.limit(executor, 4))) {
+                assertNotNull(future.join());
+            }
+        } finally {
+            limiter.release();
+        }
+    }
+
+    @Test
+    void batchesRunWithASingleConcurrentSearch() throws InterruptedException {
+        SearchLimiter limiter = new SearchLimiter(1, 0, Duration.ofMillis(1));
+        SlowSearcher searcher = new SlowSearcher();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            runBatch(limiter, searcher, executor, 10);
+        }
+        assertEquals(1, searcher.maxRunning.get());
+        assertEquals(SearchLimiter.Admission.ADMITTED, limiter.tryAcquire());
+    }
+
+    @Test
+    void batchesUseFreePermitsUpToTheirParallelism() throws InterruptedException {
+        SearchLimiter limiter = new SearchLimiter(8, 0, Duration.ofMillis(1));
+        SlowSearcher searcher = new SlowSearcher();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            runBatch(limiter, searcher, executor, 20);
+        }
+        assertTrue(searcher.maxRunning.get() > 1);
+        assertTrue(searcher.maxRunning.get() <= 4);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(SearchLimiter.Admission.ADMITTED, limiter.tryAcquire());
+        }
+    }
+
+    @Test
+    void batchesDontCrowdOutSingleSearches() throws Exception {
+        SearchLimiter limiter = new SearchLimiter(3, 64, Duration.ofSeconds(1));
+        SlowSearcher searcher = new SlowSearcher();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            CompletableFuture<Void> batch = CompletableFuture.runAsync(() -> {
+                try {
+                    runBatch(limiter, searcher, executor, 100);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }, executor);
+            Thread.sleep(100);
+            // The batch is using every permit, but only holds one of them for its whole duration.
+            assertEquals(3, searcher.maxRunning.get());
+            long start = System.nanoTime();
+            assertEquals(SearchLimiter.Admission.ADMITTED, limiter.tryAcquire());
+            assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 500);
+            assertFalse(batch.isDone());
+            limiter.release();
+            batch.get();
+        }
+    }
+}
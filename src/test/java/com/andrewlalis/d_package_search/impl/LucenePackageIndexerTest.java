@@ -0,0 +1,52 @@
+package com.andrewlalis.d_package_search.impl;
+
+import com.andrewlalis.d_package_search.PackageInfo;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LucenePackageIndexerTest {
+    private static final LocalDateTime PUBLISHED = LocalDateTime.of(2023, 11, 1, 12, 0);
+
+    private static PackageInfo.VersionInfo version(String tag, String description) {
+        return new PackageInfo.VersionInfo(PUBLISHED, tag, description, "MIT", new String[]{"someone"}, "Readme.");
+    }
+
+    private static PackageInfo info(long totalDownloads, PackageInfo.VersionInfo version) {
+        return new PackageInfo("mypackage", new String[]{"library"}, new PackageInfo.VersionInfo[]{version}, totalDownloads, PUBLISHED.plusDays(30));
+    }
+
+    private static String fingerprint(long totalDownloads, PackageInfo.VersionInfo version, int daysSinceUpdate) {
+        return LucenePackageIndexer.fingerprint(info(totalDownloads, version), version, daysSinceUpdate);
+    }
+
+    @Test
+    void startsWithTheVersionTag() {
+        assertTrue(fingerprint(100, version("1.2.3", "A package."), 30).startsWith("1.2.3:"));
+    }
+
+    @Test
+    void isStableWithinABucket() {
+        PackageInfo.VersionInfo version = version("1.0.0", "A package.");
+        assertEquals(fingerprint(100, version, 30), fingerprint(100, version("1.0.0", "A package."), 30));
+        assertEquals(fingerprint(100, version, 30), fingerprint(127, version, 17));
+        assertEquals(fingerprint(0, version, 0), fingerprint(0, version, 0));
+    }
+
+    @Test
+    void changesAcrossBuckets() {
+        PackageInfo.VersionInfo version = version("1.0.0", "A package.");
+        assertNotEquals(fingerprint(100, version, 30), fingerprint(200, version, 30));
+        assertNotEquals(fingerprint(100, version, 30), fingerprint(100, version, 60));
+        assertNotEquals(fingerprint(0, version, 30), fingerprint(1, version, 30));
+    }
+
+    @Test
+    void changesWithTheIndexedFields() {
+        String fingerprint = fingerprint(100, version("1.0.0", "A package."), 30);
+        assertNotEquals(fingerprint, fingerprint(100, version("1.0.0", "A better package."), 30));
+        assertNotEquals(fingerprint, fingerprint(100, version("1.0.1", "A package."), 30));
+    }
+}
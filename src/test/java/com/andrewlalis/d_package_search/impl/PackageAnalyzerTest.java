@@ -0,0 +1,81 @@
+package com.andrewlalis.d_package_search.impl;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PackageAnalyzerTest {
+    /**
+     * Analyzes text, and gets each term with its position increment, like
+     * "+1 vibe" or "+0 vib".
+     */
+    private static List<String> analyze(PackageAnalyzer analyzer, String field, String text) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream(field, text)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute increment = stream.addAttribute(PositionIncrementAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add("+" + increment.getPositionIncrement() + " " + term);
+            }
+            stream.end();
+        }
+        return tokens;
+    }
+
+    @Test
+    void plainFieldsAreNotExpanded() throws IOException {
+        try (PackageAnalyzer analyzer = new PackageAnalyzer()) {
+            assertEquals(List.of("+1 vibe", "+1 d"), analyze(analyzer, "name", "Vibe-D"));
+        }
+    }
+
+    @Test
+    void prefixFieldsIndexEveryPrefixAtTheTermsPosition() throws IOException {
+        try (PackageAnalyzer analyzer = new PackageAnalyzer()) {
+            assertEquals(
+                    List.of("+1 v", "+0 vi", "+0 vib", "+0 vibe", "+1 d"),
+                    analyze(analyzer, PackageAnalyzer.prefixField("name"), "Vibe-D")
+            );
+        }
+    }
+
+    @Test
+    void prefixesStopAtTheMaximumLength() throws IOException {
+        String term = "abcdefghijklmnopqrstuvwxyz";
+        try (PackageAnalyzer analyzer = new PackageAnalyzer()) {
+            List<String> tokens = analyze(analyzer, PackageAnalyzer.prefixField("name"), term + " x");
+            assertEquals(PackageAnalyzer.MAX_PREFIX_LENGTH + 1, tokens.size());
+            assertEquals("+0 " + term.substring(0, PackageAnalyzer.MAX_PREFIX_LENGTH), tokens.get(PackageAnalyzer.MAX_PREFIX_LENGTH - 1));
+            assertEquals("+1 x", tokens.get(PackageAnalyzer.MAX_PREFIX_LENGTH));
+        }
+    }
+
+    @Test
+    void prefixesNeverSplitSurrogatePairs() throws IOException {
+        // U+1D4B3 is a letter outside the basic multilingual plane, so it takes two chars.
+        String letter = new String(Character.toChars(0x1D4B3));
+        try (PackageAnalyzer analyzer = new PackageAnalyzer()) {
+            assertEquals(
+                    List.of("+1 a", "+0 a" + letter, "+0 a" + letter + "b"),
+                    analyze(analyzer, PackageAnalyzer.prefixField("name"), "a" + letter + "b")
+            );
+        }
+    }
+
+    @Test
+    void reusedStreamsStartOver() throws IOException {
+        try (PackageAnalyzer analyzer = new PackageAnalyzer()) {
+            String field = PackageAnalyzer.prefixField("description");
+            analyze(analyzer, field, "unfinished");
+            assertEquals(List.of("+1 a", "+0 ab"), analyze(analyzer, field, "ab"));
+        }
+    }
+}
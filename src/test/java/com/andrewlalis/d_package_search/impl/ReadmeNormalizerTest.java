@@ -0,0 +1,50 @@
+package com.andrewlalis.d_package_search.impl;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReadmeNormalizerTest {
+    @Test
+    void stripsMarkup() {
+        String markdown = """
+                # My *Library*
+
+                > A **fast** [JSON](https://example.com) parser. ![badge](https://example.com/badge.svg)
+
+                - Uses `std_json` <br/> internally
+                1. Step one
+
+                ---
+                <!-- hidden -->
+                [ref]: https://example.com
+                """;
+        assertEquals(
+                "My Library A fast JSON parser. badge Uses std_json internally Step one",
+                ReadmeNormalizer.normalize(markdown)
+        );
+    }
+
+    @Test
+    void removesCodeBlocks() {
+        assertEquals(
+                "Install it: Then use it.",
+                ReadmeNormalizer.normalize("Install it:\n```d\nimport foo;\n```\nThen use it.")
+        );
+        assertEquals("Unclosed:", ReadmeNormalizer.normalize("Unclosed:\n~~~\nnever closed"));
+    }
+
+    @Test
+    void capsTheLengthAtAWordBoundary() {
+        String text = ReadmeNormalizer.normalize("word ".repeat(ReadmeNormalizer.MAX_LENGTH));
+        assertTrue(text.length() <= ReadmeNormalizer.MAX_LENGTH);
+        assertTrue(text.endsWith("word"), text.substring(text.length() - 10));
+    }
+
+    @Test
+    void capsTheLengthOfTextWithoutSpaces() {
+        String text = ReadmeNormalizer.normalize("x".repeat(ReadmeNormalizer.MAX_LENGTH * 5));
+        assertEquals(ReadmeNormalizer.MAX_LENGTH, text.length());
+    }
+}
@@ -0,0 +1,167 @@
+package com.andrewlalis.d_package_search.impl;
+
+import com.andrewlalis.d_package_search.ReplicationSource;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicationClientTest {
+    @TempDir
+    Path tempDir;
+
+    private IndexGenerations primary;
+    private IndexGenerations replica;
+    private HttpServer server;
+    private ReplicationClient client;
+    private final AtomicInteger updates = new AtomicInteger();
+
+    /**
+     * Starts a primary that serves its index the same way as the web API's
+     * replication endpoints, and a replica that copies it.
+     */
+    @BeforeEach
+    void setUp() throws IOException {
+        primary = new IndexGenerations(tempDir.resolve("primary"));
+        replica = new IndexGenerations(tempDir.resolve("replica"));
+        ReplicationSource source = new LuceneReplicationSource(primary);
+        ObjectMapper objectMapper = new ObjectMapper();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/replication/snapshot", exchange -> {
+            ReplicationSource.Snapshot snapshot = source.getSnapshot();
+            if (snapshot == null) {
+                exchange.sendResponseHeaders(204, -1);
+            } else {
+                send(exchange, objectMapper.writeValueAsBytes(snapshot));
+            }
+            exchange.close();
+        });
+        server.createContext("/replication/file", exchange -> {
+            Map<String, String> params = new HashMap<>();
+            for (String param : exchange.getRequestURI().getQuery().split("&")) {
+                String[] parts = param.split("=", 2);
+                params.put(parts[0], parts[1]);
+            }
+            try (InputStream in = source.openFile(Long.parseLong(params.get("generation")), params.get("name"))) {
+                send(exchange, in.readAllBytes());
+            } catch (NoSuchFileException e) {
+                exchange.sendResponseHeaders(404, -1);
+            }
+            exchange.close();
+        });
+        server.start();
+        client = new ReplicationClient(replica, "http://localhost:" + server.getAddress().getPort() + "/", updates::incrementAndGet);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    private static void send(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Commits packages with the given names to a generation's index.
+     */
+    private static void commit(IndexGenerations.Generation generation, String... names) throws IOException {
+        try (
+                Directory dir = FSDirectory.open(generation.path());
+                IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))
+        ) {
+            for (String name : names) {
+                Document doc = new Document();
+                doc.add(new StringField("name", name, Field.Store.YES));
+                writer.addDocument(doc);
+            }
+        }
+    }
+
+    private static IndexGenerations.Generation publishNext(IndexGenerations generations, String... names) throws IOException {
+        IndexGenerations.Generation generation = generations.createNext();
+        commit(generation, names);
+        generations.publish(generation);
+        return generation;
+    }
+
+    private int replicaPackageCount() throws IOException {
+        try (
+                Directory dir = FSDirectory.open(replica.getCurrent().orElseThrow().path());
+                DirectoryReader reader = DirectoryReader.open(dir)
+        ) {
+            return reader.numDocs();
+        }
+    }
+
+    @Test
+    void copiesNewGenerationsAndCommits() throws Exception {
+        assertFalse(client.sync());
+        IndexGenerations.Generation first = publishNext(primary, "a");
+        assertTrue(client.sync());
+        assertEquals(first.id(), replica.getCurrent().orElseThrow().id());
+        assertEquals(1, replicaPackageCount());
+        assertFalse(client.sync());
+
+        commit(first, "b");
+        assertTrue(client.sync());
+        assertEquals(2, replicaPackageCount());
+
+        IndexGenerations.Generation second = publishNext(primary, "c");
+        assertTrue(client.sync());
+        assertEquals(second.id(), replica.getCurrent().orElseThrow().id());
+        assertEquals(first.id(), replica.getPrevious().orElseThrow().id());
+        assertEquals(1, replicaPackageCount());
+        assertEquals(3, updates.get());
+    }
+
+    @Test
+    void rollsBackWhenThePrimaryDoes() throws Exception {
+        IndexGenerations.Generation first = publishNext(primary, "a");
+        assertTrue(client.sync());
+        IndexGenerations.Generation second = publishNext(primary, "b", "c");
+        assertTrue(client.sync());
+        assertEquals(2, replicaPackageCount());
+
+        assertTrue(primary.rollback());
+        assertTrue(client.sync());
+        assertEquals(first.id(), replica.getCurrent().orElseThrow().id());
+        assertEquals(second.id(), replica.getPrevious().orElseThrow().id());
+        assertEquals(1, replicaPackageCount());
+        assertFalse(client.sync());
+
+        // The indexer keeps committing to the generation it rolled back to.
+        commit(first, "d");
+        assertTrue(client.sync());
+        assertEquals(first.id(), replica.getCurrent().orElseThrow().id());
+        assertEquals(2, replicaPackageCount());
+        assertEquals(4, updates.get());
+    }
+}
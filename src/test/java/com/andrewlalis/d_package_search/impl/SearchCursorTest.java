@@ -0,0 +1,62 @@
+package com.andrewlalis.d_package_search.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchCursorTest {
+    private static String encode(String text) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void roundTrips() {
+        for (boolean rescored : new boolean[]{true, false}) {
+            SearchCursor cursor = new SearchCursor("1700000000000", rescored, 42, 3.14159f);
+            assertEquals(cursor, SearchCursor.decode(cursor.encode(), "1700000000000"));
+        }
+    }
+
+    @Test
+    void keepsTheExactScore() {
+        for (float score : new float[]{0f, Float.MIN_VALUE, 1f / 3, Float.MAX_VALUE, Float.NaN}) {
+            SearchCursor cursor = new SearchCursor("v", false, 0, score);
+            assertEquals(
+                    Float.floatToIntBits(score),
+                    Float.floatToIntBits(SearchCursor.decode(cursor.encode(), "v").lastHit().score)
+            );
+        }
+    }
+
+    @Test
+    void isUrlSafe() {
+        String encoded = new SearchCursor("1700000000000", true, Integer.MAX_VALUE, -1.5f).encode();
+        assertTrue(encoded.matches("[A-Za-z0-9_-]+"), encoded);
+    }
+
+    @Test
+    void expiresWhenTheIndexChanges() {
+        String encoded = new SearchCursor("1", true, 5, 1f).encode();
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(encoded, "2"));
+        assertTrue(e.getMessage().contains("expired"), e.getMessage());
+    }
+
+    @Test
+    void rejectsMalformedCursors() {
+        for (String encoded : new String[]{
+                "not base64!",
+                "",
+                encode("1:r:0"),
+                encode("1:r:0:5:6"),
+                encode("1:x:0:5"),
+                encode("1:r:zero:5"),
+                encode("1:r:0:five")
+        }) {
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(encoded, "1"));
+            assertEquals("Invalid cursor.", e.getMessage(), encoded);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.andrewlalis.d_package_search.impl;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnippetHighlighterTest {
+    private static final String FIELD = "description";
+
+    /**
+     * Indexes a single document with the given text, the same way that
+     * highlighted fields are indexed, and builds a snippet of it.
+     */
+    private static String highlight(String text, List<String> terms, boolean prefixes) throws IOException {
+        FieldType type = new FieldType(TextField.TYPE_STORED);
+        type.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        try (Directory dir = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new PackageAnalyzer()))) {
+                Document doc = new Document();
+                doc.add(new Field(FIELD, text, type));
+                writer.addDocument(doc);
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                return SnippetHighlighter.highlight(reader, 0, FIELD, terms, prefixes);
+            }
+        }
+    }
+
+    /**
+     * Gets a snippet's text, without its marks.
+     */
+    private static String unmarked(String snippet) {
+        return snippet.replace("<mark>", "").replace("</mark>", "");
+    }
+
+    @Test
+    void marksEveryMatchInShortText() throws IOException {
+        assertEquals(
+                "A <mark>JSON</mark> parser and <mark>json</mark> writer.",
+                highlight("A JSON parser and json writer.", List.of("json"), false)
+        );
+    }
+
+    @Test
+    void returnsNullWithoutMatches() throws IOException {
+        assertNull(highlight("A JSON parser.", List.of("yaml"), false));
+    }
+
+    @Test
+    void onlyMatchesPrefixesWhenAsked() throws IOException {
+        assertNull(highlight("Serialization library.", List.of("serial"), false));
+        assertEquals(
+                "<mark>Serialization</mark> library.",
+                highlight("Serialization library.", List.of("serial"), true)
+        );
+    }
+
+    @Test
+    void escapesHtml() throws IOException {
+        assertEquals(
+                "&lt;b&gt;<mark>fast</mark>&lt;/b&gt; &amp; &quot;safe&quot;",
+                highlight("<b>fast</b> & \"safe\"", List.of("fast"), false)
+        );
+    }
+
+    @Test
+    void cutsLongTextAtWordsAroundTheMatch() throws IOException {
+        String filler = "lorem ipsum dolor sit amet ".repeat(20);
+        String text = filler + "needle " + filler;
+        String snippet = highlight(text, List.of("needle"), false);
+        assertNotNull(snippet);
+        assertTrue(snippet.startsWith("…lorem "), snippet);
+        assertTrue(snippet.endsWith("…"), snippet);
+        assertTrue(snippet.contains("<mark>needle</mark>"), snippet);
+        String body = unmarked(snippet).substring(1, unmarked(snippet).length() - 1);
+        assertTrue(body.length() <= SnippetHighlighter.SNIPPET_LENGTH, snippet);
+        assertTrue(text.contains(body), snippet);
+        assertFalse(body.endsWith(" "), snippet);
+    }
+
+    @Test
+    void hasNoEllipsisAtTheEdgesOfTheText() throws IOException {
+        String text = "needle " + "lorem ipsum dolor sit amet ".repeat(20) + "end";
+        String start = highlight(text, List.of("needle"), false);
+        assertTrue(start.startsWith("<mark>needle</mark> lorem"), start);
+        assertTrue(start.endsWith("…"), start);
+        String end = highlight(text, List.of("end"), false);
+        assertTrue(end.startsWith("…"), end);
+        assertTrue(end.endsWith("<mark>end</mark>"), end);
+    }
+
+    @Test
+    void picksTheWindowWithTheMostMatches() throws IOException {
+        String filler = "lorem ipsum dolor sit amet ".repeat(20);
+        String text = "alpha " + filler + "beta alpha beta " + filler;
+        String snippet = highlight(text, List.of("alpha", "beta"), false);
+        assertTrue(snippet.contains("<mark>beta</mark> <mark>alpha</mark> <mark>beta</mark>"), snippet);
+        assertTrue(snippet.startsWith("…"), snippet);
+    }
+}
@@ -0,0 +1,102 @@
+package com.andrewlalis.d_package_search.impl;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SpellingDictionaryTest {
+    /**
+     * Builds a dictionary from an index of packages with the given names,
+     * indexed the same way that package names are.
+     */
+    private static SpellingDictionary dictionary(String... names) throws IOException {
+        try (Directory dir = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new PackageAnalyzer()))) {
+                for (String name : names) {
+                    Document doc = new Document();
+                    doc.add(new TextField("name", name, Field.Store.YES));
+                    doc.add(new StringField("id", name, Field.Store.NO));
+                    writer.addDocument(doc);
+                }
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                return SpellingDictionary.build(reader);
+            }
+        }
+    }
+
+    @Test
+    void distanceCountsEachKindOfEdit() {
+        assertEquals(0, SpellingDictionary.distance("vibe", "vibe", 2));
+        assertEquals(1, SpellingDictionary.distance("vibe", "vibes", 2));
+        assertEquals(1, SpellingDictionary.distance("vibe", "vib", 2));
+        assertEquals(1, SpellingDictionary.distance("vibe", "vive", 2));
+        assertEquals(1, SpellingDictionary.distance("vibe", "ivbe", 2));
+        assertEquals(2, SpellingDictionary.distance("vibe", "ivbes", 2));
+    }
+
+    @Test
+    void distanceStopsPastTheMaximum() {
+        assertEquals(2, SpellingDictionary.distance("vibe", "mysql", 1));
+        assertEquals(2, SpellingDictionary.distance("vibe", "vibedocs", 1));
+        assertEquals(3, SpellingDictionary.distance("abcdef", "badcfe", 2));
+    }
+
+    @Test
+    void correctsMisspelledWords() throws IOException {
+        SpellingDictionary dictionary = dictionary("mysql-native", "vibe-d", "dpq2");
+        assertEquals("mysql", dictionary.correct("mysq"));
+        assertEquals("native", dictionary.correct("natvie"));
+        assertEquals("vibe-d", dictionary.correct("vibe_d"));
+        assertNull(dictionary.correct("mysql"));
+        assertNull(dictionary.correct("nothing"));
+    }
+
+    @Test
+    void onlyCorrectsLongEnoughWords() throws IOException {
+        SpellingDictionary dictionary = dictionary("dpq2", "vibe-d");
+        assertNull(dictionary.correct("dp"));
+        assertEquals("dpq2", dictionary.correct("dpq"));
+        // Short words may only be one edit away.
+        assertEquals("vibe", dictionary.correct("vibr"));
+        assertNull(dictionary.correct("vbi"));
+    }
+
+    @Test
+    void onlyCorrectsToWordsWithTheSameFirstLetter() throws IOException {
+        SpellingDictionary dictionary = dictionary("vibe-d", "json", "ajson");
+        // Like fuzzy searches, corrections can't change the first letter.
+        assertNull(dictionary.correct("ivbe"));
+        assertNull(dictionary.correct("xjson"));
+        assertEquals("json", dictionary.correct("jsonx"));
+        assertEquals("ajson", dictionary.correct("ajsonx"));
+    }
+
+    @Test
+    void prefersTheClosestThenTheMostCommonWord() throws IOException {
+        SpellingDictionary dictionary = dictionary("json", "jsox", "jsox-d", "jsonizer");
+        assertEquals("json", dictionary.correct("jsonn"));
+        // Both are one edit away, but "jsox" is in two packages.
+        assertEquals("jsox", dictionary.correct("jsoy"));
+    }
+
+    @Test
+    void suggestsCorrectionsForWholeQueries() throws IOException {
+        SpellingDictionary dictionary = dictionary("mysql-native", "vibe-d");
+        assertEquals("mysql native", dictionary.suggest(List.of("mysql", "natvie")));
+        assertNull(dictionary.suggest(List.of("mysql", "native")));
+    }
+}